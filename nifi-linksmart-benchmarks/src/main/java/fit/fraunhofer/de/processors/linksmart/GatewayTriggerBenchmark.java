@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.MockProcessSession;
+import org.apache.nifi.util.MockProcessorInitializationContext;
+import org.apache.nifi.util.SharedSessionState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batching of messages into FlowFiles by {@link LinksmartGateway#onTrigger}, against a MockProcessSession. The
+ * sub-process relays whatever the benchmark writes into a named pipe, so messages arrive the way they do in a flow, and
+ * the processor is triggered until all of them have been batched. Results are in messages per second. Needs a POSIX
+ * system with {@code mkfifo} and {@code cat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GatewayTriggerBenchmark {
+
+    private static final int MESSAGES_PER_TRIGGER = 1000;
+
+    @Param({"1", "10", "100", "1000"})
+    public int maxBatchSize;
+
+    @Param({"none", "gzip"})
+    public String compression;
+
+    private LinksmartGateway gateway;
+    private MockProcessContext context;
+    private SharedSessionState sharedState;
+    private File fifo;
+    private OutputStream stdout;
+    private byte[] messages;
+
+    @Setup
+    public void setup() throws Exception {
+        final File directory = Files.createTempDirectory("gateway-benchmark").toFile();
+        fifo = new File(directory, "stdout");
+        if (new ProcessBuilder("mkfifo", fifo.getAbsolutePath()).inheritIO().start().waitFor() != 0) {
+            throw new IOException("Failed to create the named pipe " + fifo);
+        }
+
+        gateway = new LinksmartGateway();
+        context = new MockProcessContext(gateway);
+        gateway.initialize(new MockProcessorInitializationContext(gateway, context));
+
+        context.setProperty(LinksmartGateway.COMMAND_LINE, "cat " + fifo.getAbsolutePath());
+        context.setProperty(LinksmartGateway.MAX_MESSAGE_QUEUE_SIZE, String.valueOf(MESSAGES_PER_TRIGGER));
+        context.setProperty(LinksmartGateway.MAX_BATCH_SIZE, String.valueOf(maxBatchSize));
+        context.setProperty(LinksmartGateway.COMPRESSION, compression);
+        gateway.onScheduled(context);
+
+        // Opening blocks until the sub-process has opened the other end
+        stdout = new FileOutputStream(fifo);
+        sharedState = new SharedSessionState(gateway, new AtomicLong());
+
+        final StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < MESSAGES_PER_TRIGGER; i++) {
+            lines.append("{\"sensor\":\"temperature\",\"value\":21.5,\"unit\":\"C\"}\n");
+        }
+        messages = lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup(Level.Invocation)
+    public void writeMessages() throws IOException {
+        stdout.write(messages);
+        stdout.flush();
+    }
+
+    // Every batch is full, as the number of messages is a multiple of the batch size
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_TRIGGER)
+    public void onTrigger() {
+        int batched = 0;
+        while (batched < MESSAGES_PER_TRIGGER) {
+            final MockProcessSession session = new MockProcessSession(sharedState, gateway);
+            gateway.onTrigger(context, session);
+            batched += session.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS).size() * maxBatchSize;
+            session.commit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        stdout.close();
+        gateway.onStopped(context);
+        fifo.delete();
+        fifo.getParentFile().delete();
+    }
+}
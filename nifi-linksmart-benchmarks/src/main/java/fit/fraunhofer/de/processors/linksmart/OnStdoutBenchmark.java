@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing of one NuProcess read, i.e. a full 64 KB stdout buffer, by {@link LinksmartProcessHandler#onStdout}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnStdoutBenchmark {
+
+    private static final int NUPROCESS_BUFFER_SIZE = 65536;
+
+    @Param({"16", "256", "4096"})
+    public int lineLength;
+
+    // NuProcess hands out direct buffers
+    @Param({"true", "false"})
+    public boolean directBuffer;
+
+    private ByteBuffer buffer;
+    private int contentLength;
+    private BlockingQueue<Message> queue;
+    private LinksmartProcessHandler handler;
+
+    @Setup
+    public void setup() {
+        final byte[] line = new byte[lineLength];
+        Arrays.fill(line, (byte) 'x');
+        line[lineLength - 1] = '\n';
+
+        buffer = directBuffer ? ByteBuffer.allocateDirect(NUPROCESS_BUFFER_SIZE) : ByteBuffer.allocate(NUPROCESS_BUFFER_SIZE);
+        while (buffer.remaining() >= line.length) {
+            buffer.put(line);
+        }
+        contentLength = buffer.position();
+
+        queue = new LinkedBlockingQueue<>();
+        handler = new LinksmartProcessHandler(queue, new LinkedBlockingQueue<>(), new MessagePool(NUPROCESS_BUFFER_SIZE / lineLength));
+    }
+
+    @Benchmark
+    public int onStdout() {
+        buffer.position(0);
+        buffer.limit(contentLength);
+        handler.onStdout(buffer, false);
+
+        // The messages go back to the pool like they do in the processor, so that reads are measured in their steady state
+        int messages = 0;
+        Message message;
+        while ((message = queue.poll()) != null) {
+            message.release();
+            messages++;
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of messages from the pump thread to the trigger thread through each message queue implementation,
+ * taken one by one or drained in batches.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandOffBenchmark {
+
+    private static final int CAPACITY = 1024;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"LINKED", "SPSC_RING", "MPSC_RING"})
+    public String implementation;
+
+    private BlockingQueue<Message> queue;
+    private Message message;
+
+    @State(Scope.Thread)
+    public static class Batch {
+        final List<Message> messages = new ArrayList<>(BATCH_SIZE);
+    }
+
+    @Setup
+    public void setup() {
+        if ("SPSC_RING".equals(implementation)) {
+            queue = new SpscRingBuffer<>(CAPACITY);
+        } else if ("MPSC_RING".equals(implementation)) {
+            queue = new MpscRingBuffer<>(CAPACITY);
+        } else {
+            queue = new LinkedBlockingQueue<>(CAPACITY);
+        }
+        message = new Message(null, MessagePool.DEFAULT_MESSAGE_CAPACITY);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public boolean singleOffer() {
+        return queue.offer(message);
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public Message singlePoll() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("batched")
+    @GroupThreads(1)
+    public boolean batchedOffer() {
+        return queue.offer(message);
+    }
+
+    @Benchmark
+    @Group("batched")
+    @GroupThreads(1)
+    public int batchedDrain(Batch batch) {
+        batch.messages.clear();
+        return queue.drainTo(batch.messages, BATCH_SIZE);
+    }
+}
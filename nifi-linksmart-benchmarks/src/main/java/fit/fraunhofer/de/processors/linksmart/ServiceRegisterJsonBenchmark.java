@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the service entry sent with every registration, and parsing of the one the Service Catalog returns,
+ * with a growing number of meta entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceRegisterJsonBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int metaEntries;
+
+    private String serviceEntry;
+    private Map<String, Number> statistics;
+
+    @Setup
+    public void setup() {
+        final StringBuilder json = new StringBuilder()
+                .append("{\"id\":\"8f0cbd2e-0a9c-4e1b-9c1e-2f1e3b4a5c6d\",")
+                .append("\"name\":\"_linksmart._tcp\",")
+                .append("\"description\":\"NiFi instance registered by the LinksmartServiceRegister processor\",")
+                .append("\"apis\":{\"MQTT\":\"tcp://localhost:1883\",\"REST\":\"http://localhost:8080/nifi-api\"},")
+                .append("\"meta\":{");
+        for (int i = 0; i < metaEntries; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"key").append(i).append("\":\"value").append(i).append('"');
+        }
+        json.append("},\"ttl\":120}");
+        serviceEntry = json.toString();
+
+        statistics = new LinkedHashMap<>();
+        statistics.put(GatewayStatisticsPublisher.GATEWAYS, 2);
+        statistics.put(GatewayStatisticsPublisher.MESSAGES_PER_SECOND, 1234.56);
+        statistics.put(GatewayStatisticsPublisher.QUEUE_DEPTH, 42L);
+        statistics.put(GatewayStatisticsPublisher.DROP_RATE, 0.0012);
+        statistics.put(GatewayStatisticsPublisher.UPTIME, 86400L);
+    }
+
+    // The body as LinksmartServiceRegister sends it, with the TTL and the gateway statistics written into it
+    @Benchmark
+    public String serializeServiceEntry() {
+        return LinksmartServiceRegister.withMeta(LinksmartServiceRegister.withTtl(serviceEntry, 120), statistics);
+    }
+
+    @Benchmark
+    public String parseServiceId() {
+        return ServiceRegister.parseServiceId(serviceEntry);
+    }
+}
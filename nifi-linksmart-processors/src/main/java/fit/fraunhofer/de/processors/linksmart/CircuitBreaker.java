@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+/**
+ * Suspends requests to a remote service after repeated failures. Once a number of requests in a row have failed, the
+ * circuit opens and requests are rejected without being sent. After a backoff, a single trial request is let through
+ * (half-open): if it succeeds the circuit closes, otherwise it opens again for twice as long, up to a maximum. The
+ * backoff is spread randomly between half and all of it, so that many clients do not try again at the same time.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private State state = State.CLOSED;
+    private int failures; // Failures in a row while closed
+    private long backoffNanos;
+    private long openUntilNanos;
+
+    CircuitBreaker(int failureThreshold, long initialBackoffNanos, long maxBackoffNanos) {
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = Math.max(initialBackoffNanos, maxBackoffNanos);
+    }
+
+    /**
+     * @return whether a request may be sent, in which case its outcome has to be recorded
+     */
+    synchronized boolean allowRequest(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openUntilNanos >= 0) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false; // The trial request is still on its way
+        }
+    }
+
+    /**
+     * Gives back a request which was let through, but not sent after all.
+     */
+    synchronized void releaseRequest() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN; // The backoff has passed already, so the next request is the trial
+        }
+    }
+
+    /**
+     * @return whether the circuit has closed by this
+     */
+    synchronized boolean recordSuccess() {
+        final boolean closed = state != State.CLOSED;
+        state = State.CLOSED;
+        failures = 0;
+        backoffNanos = 0;
+        return closed;
+    }
+
+    /**
+     * @param random between 0 and 1
+     * @return the time until the next trial request if the circuit has opened, otherwise 0
+     */
+    synchronized long recordFailure(long now, double random) {
+        if (state == State.CLOSED && ++failures < failureThreshold) {
+            return 0;
+        }
+        backoffNanos = backoffNanos == 0 ? initialBackoffNanos : Math.min(Math.max(1, backoffNanos * 2), maxBackoffNanos);
+        final long openNanos = (long) (backoffNanos * (0.5 + 0.5 * random));
+        state = State.OPEN;
+        failures = 0;
+        openUntilNanos = now + openNanos;
+        return Math.max(1, openNanos);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports the circuit state of a Service Catalog as a counter of a processor, which is 1 while requests to the
+ * Service Catalog are suspended, and 0 otherwise.
+ */
+class CircuitStateReporter {
+
+    static final String COUNTER_NAME = "Service Catalog Circuit Open";
+
+    private final AtomicInteger reportedOpen = new AtomicInteger();
+
+    void report(final LinksmartServiceCatalogService catalog, final ProcessSession session) {
+        final int open = catalog.isCircuitOpen() ? 1 : 0;
+        final int reported = reportedOpen.getAndSet(open);
+        if (open != reported) {
+            session.adjustCounter(COUNTER_NAME, open - reported, false);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * A size-bounded cache, which evicts the least recently used value, and lets every value expire after a time derived
+ * from the value itself. Concurrent requests for a value that is not cached share a single load, and failed loads are
+ * not cached.
+ */
+class ExpiringLruCache<K, V> {
+
+    private final int maxSize;
+    private final Map<K, Entry<V>> entries; // Guarded by itself, in access order
+    private final ToLongFunction<V> expiryNanos;
+    private final LongSupplier nanoTime;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+
+    /**
+     * @param expiryNanos how long a loaded value is kept
+     */
+    ExpiringLruCache(int maxSize, ToLongFunction<V> expiryNanos) {
+        this(maxSize, expiryNanos, System::nanoTime);
+    }
+
+    ExpiringLruCache(final int maxSize, ToLongFunction<V> expiryNanos, LongSupplier nanoTime) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.expiryNanos = expiryNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param loader called if the value is neither cached nor being loaded already
+     */
+    CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader) {
+        final Entry<V> entry = new Entry<>();
+        synchronized (entries) {
+            final Entry<V> cached = entries.get(key);
+            if (cached != null && !cached.isExpired(nanoTime.getAsLong())) {
+                hitCount.incrementAndGet();
+                return cached.value;
+            }
+            entries.put(key, entry);
+            evict();
+        }
+
+        loadCount.incrementAndGet();
+        CompletableFuture<V> load;
+        try {
+            load = loader.apply(key);
+        } catch (RuntimeException e) {
+            load = new CompletableFuture<>();
+            load.completeExceptionally(e);
+        }
+        load.whenComplete((value, failure) -> {
+            if (failure == null) {
+                entry.expiresNanos = nanoTime.getAsLong() + expiryNanos.applyAsLong(value);
+                entry.loaded = true;
+                entry.value.complete(value);
+            } else {
+                synchronized (entries) {
+                    entries.remove(key, entry);
+                }
+                entry.value.completeExceptionally(failure);
+            }
+        });
+        return entry.value;
+    }
+
+    // A value being loaded is never evicted, as a request for it in the meantime would start a second load, so the
+    // cache may exceed its size until the next value is added after the loads have completed
+    private void evict() {
+        final Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (entries.size() > maxSize && eldest.hasNext()) {
+            if (eldest.next().loaded) {
+                eldest.remove();
+            }
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long takeHitCount() {
+        return hitCount.getAndSet(0);
+    }
+
+    long takeLoadCount() {
+        return loadCount.getAndSet(0);
+    }
+
+    private static class Entry<V> {
+        final CompletableFuture<V> value = new CompletableFuture<>();
+        volatile long expiresNanos;
+        volatile boolean loaded; // A value being loaded never expires, so that every request for it waits for the same load
+
+        boolean isExpired(long now) {
+            return loaded && now - expiresNanos >= 0;
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How the stdout stream of the sub-process is split into messages.
+ */
+enum FramingStrategy {
+
+    LINE,
+    INT32_LENGTH,
+    VARINT_LENGTH,
+    NETSTRING;
+
+    // Messages larger than the streaming threshold are handed off in parts. Length prefixes announcing more than the
+    // maximum fail framing; lines have no prefix, and are streamed once they do not fit into the buffer anyway.
+    Framer createFramer(MessagePool pool, int streamingThreshold, int maxFrameLength) {
+        switch (this) {
+            case INT32_LENGTH:
+                return new LengthPrefixedFramer(pool, LengthPrefixedFramer.Prefix.INT32, streamingThreshold, maxFrameLength);
+            case VARINT_LENGTH:
+                return new LengthPrefixedFramer(pool, LengthPrefixedFramer.Prefix.VARINT, streamingThreshold, maxFrameLength);
+            case NETSTRING:
+                return new LengthPrefixedFramer(pool, LengthPrefixedFramer.Prefix.NETSTRING, streamingThreshold, maxFrameLength);
+            default:
+                return new LineFramer(pool, streamingThreshold);
+        }
+    }
+
+    // Bytes written to stdin in front of a message of the given length, so that the sub-process can split its input the same way
+    byte[] header(long length) {
+        switch (this) {
+            case INT32_LENGTH:
+                if (length > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("A message of " + length + " bytes does not fit a 4-byte length prefix");
+                }
+                return ByteBuffer.allocate(4).putInt((int) length).array();
+            case VARINT_LENGTH:
+                final ByteArrayOutputStream varint = new ByteArrayOutputStream(10);
+                long remaining = length;
+                while ((remaining & ~0x7FL) != 0) {
+                    varint.write((int) ((remaining & 0x7F) | 0x80));
+                    remaining >>>= 7;
+                }
+                varint.write((int) remaining);
+                return varint.toByteArray();
+            case NETSTRING:
+                return (length + ":").getBytes(StandardCharsets.US_ASCII);
+            default:
+                return new byte[0];
+        }
+    }
+
+    // Bytes written to stdin after a message
+    byte[] trailer() {
+        switch (this) {
+            case LINE:
+                return new byte[]{'\n'};
+            case NETSTRING:
+                return new byte[]{','};
+            default:
+                return new byte[0];
+        }
+    }
+
+}
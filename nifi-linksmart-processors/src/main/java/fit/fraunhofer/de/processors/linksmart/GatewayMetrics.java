@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of {@link LinksmartGateway}, published as a periodic snapshot. The pump threads only count into
+ * their handlers, which are collected once per trigger, so all state here belongs to the trigger thread and
+ * needs no synchronization (the processor is triggered serially).
+ */
+final class GatewayMetrics {
+
+    // Upper bounds of the latency histogram buckets. Latencies above the last bound go into an overflow bucket.
+    private static final long[] LATENCY_BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    private long messagesRead;
+    private long bytesRead;
+    private long messagesDropped;
+
+    // Reset with every snapshot
+    private long intervalStart = System.nanoTime();
+    private long intervalMessagesRead;
+    private long intervalBytesRead;
+    private int queueHighWaterMark;
+    private long batches;
+    private long batchedMessages;
+    private final long[] latencyBuckets = new long[LATENCY_BUCKET_MILLIS.length + 1];
+    private long latencyCount;
+    private long maxLatencyNanos;
+
+    void addRead(long messages, long bytes) {
+        messagesRead += messages;
+        bytesRead += bytes;
+        intervalMessagesRead += messages;
+        intervalBytesRead += bytes;
+    }
+
+    void addDropped(long messages) {
+        messagesDropped += messages;
+    }
+
+    void sampleQueueDepth(int depth) {
+        if (depth > queueHighWaterMark) {
+            queueHighWaterMark = depth;
+        }
+    }
+
+    void recordBatch(int messages) {
+        batches++;
+        batchedMessages += messages;
+    }
+
+    // Time from reading the message from the pipe until its FlowFile is transferred
+    void recordLatency(long nanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKET_MILLIS.length && millis > LATENCY_BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets[bucket]++;
+        latencyCount++;
+        if (nanos > maxLatencyNanos) {
+            maxLatencyNanos = nanos;
+        }
+    }
+
+    boolean isSnapshotDue(long intervalNanos) {
+        return System.nanoTime() - intervalStart >= intervalNanos;
+    }
+
+    /**
+     * Returns the statistics since the last snapshot, along with the totals, and starts a new interval.
+     */
+    Snapshot snapshot(int maxBatchSize) {
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1, now - intervalStart) / 1e9;
+
+        final Snapshot snapshot = new Snapshot();
+        snapshot.intervalMillis = TimeUnit.NANOSECONDS.toMillis(now - intervalStart);
+        snapshot.messagesRead = messagesRead;
+        snapshot.bytesRead = bytesRead;
+        snapshot.messagesDropped = messagesDropped;
+        snapshot.messagesPerSecond = intervalMessagesRead / seconds;
+        snapshot.bytesPerSecond = intervalBytesRead / seconds;
+        snapshot.queueHighWaterMark = queueHighWaterMark;
+        snapshot.batchFillRatio = batches == 0 ? 0 : (double) batchedMessages / (batches * (long) maxBatchSize);
+        snapshot.latencyMillisP50 = latencyPercentile(0.50);
+        snapshot.latencyMillisP90 = latencyPercentile(0.90);
+        snapshot.latencyMillisP99 = latencyPercentile(0.99);
+        snapshot.latencyMillisMax = TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos);
+
+        intervalStart = now;
+        intervalMessagesRead = 0;
+        intervalBytesRead = 0;
+        queueHighWaterMark = 0;
+        batches = 0;
+        batchedMessages = 0;
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = 0;
+        }
+        latencyCount = 0;
+        maxLatencyNanos = 0;
+        return snapshot;
+    }
+
+    // Upper bound of the bucket holding the percentile, or the maximum if that is lower
+    private long latencyPercentile(double percentile) {
+        if (latencyCount == 0) {
+            return 0;
+        }
+        final long maxMillis = TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos);
+        final long rank = (long) Math.ceil(percentile * latencyCount);
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKET_MILLIS.length; i++) {
+            count += latencyBuckets[i];
+            if (count >= rank) {
+                return Math.min(LATENCY_BUCKET_MILLIS[i], maxMillis);
+            }
+        }
+        return maxMillis;
+    }
+
+    // Serialized to JSON as it is
+    static final class Snapshot {
+        long intervalMillis;
+        long messagesRead;
+        long bytesRead;
+        long messagesDropped;
+        double messagesPerSecond;
+        double bytesPerSecond;
+        int queueHighWaterMark;
+        double batchFillRatio;
+        long latencyMillisP50;
+        long latencyMillisP90;
+        long latencyMillisP99;
+        long latencyMillisMax;
+    }
+}
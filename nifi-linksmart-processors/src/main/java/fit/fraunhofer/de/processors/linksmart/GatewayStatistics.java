@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live statistics of the {@link LinksmartGateway} processors running in this JVM, shared with other processors such as
+ * {@link LinksmartServiceRegister}. Every gateway is the only writer of its own statistics, and readers sum them up
+ * on their own, so neither side takes a lock.
+ */
+final class GatewayStatistics {
+
+    private static final ConcurrentMap<String, GatewayStatistics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final AtomicLong messagesRead = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private volatile int queueDepth;
+    private volatile long startedNanos; // Latest start of one of the sub-processes
+
+    GatewayStatistics(long now) {
+        startedNanos = now;
+    }
+
+    static GatewayStatistics register(String processorId, long now) {
+        final GatewayStatistics statistics = REGISTRY.computeIfAbsent(processorId, id -> new GatewayStatistics(now));
+        statistics.started(now);
+        return statistics;
+    }
+
+    static void unregister(String processorId) {
+        REGISTRY.remove(processorId);
+    }
+
+    static Snapshot snapshot(long now) {
+        return snapshot(REGISTRY, now);
+    }
+
+    static Snapshot snapshot(Map<String, GatewayStatistics> gateways, long now) {
+        final Map<String, Totals> totals = new HashMap<>();
+        long depth = 0;
+        long uptimeNanos = 0;
+        for (final Map.Entry<String, GatewayStatistics> gateway : gateways.entrySet()) {
+            final GatewayStatistics statistics = gateway.getValue();
+            final long uptime = now - statistics.startedNanos;
+            uptimeNanos = totals.isEmpty() ? uptime : Math.min(uptimeNanos, uptime);
+            totals.put(gateway.getKey(), new Totals(statistics.messagesRead.get(), statistics.messagesDropped.get()));
+            depth += statistics.queueDepth;
+        }
+        return new Snapshot(totals, depth, uptimeNanos);
+    }
+
+    void addRead(long messages) {
+        messagesRead.addAndGet(messages);
+    }
+
+    void addDropped(long messages) {
+        messagesDropped.addAndGet(messages);
+    }
+
+    void setQueueDepth(int depth) {
+        queueDepth = depth;
+    }
+
+    void started(long now) {
+        startedNanos = now;
+    }
+
+    /**
+     * Totals of all gateways. The uptime is the one of the most recently started sub-process.
+     */
+    static final class Snapshot {
+        final int gateways;
+        final long messagesRead;
+        final long messagesDropped;
+        final long queueDepth;
+        final long uptimeNanos;
+        final Map<String, Totals> totals; // By processor ID, as a stopped gateway takes its totals along
+
+        Snapshot(Map<String, Totals> totals, long queueDepth, long uptimeNanos) {
+            long read = 0;
+            long dropped = 0;
+            for (final Totals gateway : totals.values()) {
+                read += gateway.messagesRead;
+                dropped += gateway.messagesDropped;
+            }
+            this.gateways = totals.size();
+            this.messagesRead = read;
+            this.messagesDropped = dropped;
+            this.queueDepth = queueDepth;
+            this.uptimeNanos = uptimeNanos;
+            this.totals = totals;
+        }
+    }
+
+    /**
+     * Totals of a single gateway since it was started.
+     */
+    static final class Totals {
+        final long messagesRead;
+        final long messagesDropped;
+
+        Totals(long messagesRead, long messagesDropped) {
+            this.messagesRead = messagesRead;
+            this.messagesDropped = messagesDropped;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the totals of {@link GatewayStatistics} into rates over the time between two heartbeats of a service entry,
+ * and holds the published values back until one of them has changed by more than a threshold, since every change of
+ * the service entry costs a full registration. Used by the trigger thread only.
+ */
+final class GatewayStatisticsPublisher {
+
+    static final String GATEWAYS = "gateway_count";
+    static final String MESSAGES_PER_SECOND = "gateway_messages_per_second";
+    static final String QUEUE_DEPTH = "gateway_queue_depth";
+    static final String DROP_RATE = "gateway_drop_rate";
+    static final String UPTIME = "gateway_uptime_seconds";
+
+    private final double changeThreshold;
+    private GatewayStatistics.Snapshot previous;
+    private long previousNanos;
+    private Map<String, Number> published;
+
+    GatewayStatisticsPublisher(double changeThreshold, GatewayStatistics.Snapshot initial, long now) {
+        this.changeThreshold = changeThreshold;
+        previous = initial;
+        previousNanos = now;
+    }
+
+    // The values for the meta data of the entry, which stay the ones published before unless they have changed enough
+    Map<String, Number> sample(GatewayStatistics.Snapshot snapshot, long now) {
+        // Summed up per gateway, as one which has been stopped takes its totals along, which must not hide the
+        // throughput of the others
+        long read = 0;
+        long dropped = 0;
+        for (final Map.Entry<String, GatewayStatistics.Totals> gateway : snapshot.totals.entrySet()) {
+            final GatewayStatistics.Totals before = previous.totals.get(gateway.getKey());
+            read += delta(gateway.getValue().messagesRead, before == null ? 0 : before.messagesRead);
+            dropped += delta(gateway.getValue().messagesDropped, before == null ? 0 : before.messagesDropped);
+        }
+        final double seconds = (double) (now - previousNanos) / TimeUnit.SECONDS.toNanos(1);
+        previous = snapshot;
+        previousNanos = now;
+
+        final Map<String, Number> values = new LinkedHashMap<>();
+        values.put(GATEWAYS, snapshot.gateways);
+        values.put(MESSAGES_PER_SECOND, seconds > 0 ? round(read / seconds, 100) : 0.0);
+        values.put(QUEUE_DEPTH, snapshot.queueDepth);
+        values.put(DROP_RATE, read + dropped > 0 ? round((double) dropped / (read + dropped), 10000) : 0.0);
+        values.put(UPTIME, TimeUnit.NANOSECONDS.toSeconds(snapshot.uptimeNanos));
+        if (published == null || hasChanged(published, values, changeThreshold)) {
+            published = values;
+        }
+        return published;
+    }
+
+    // The uptime grows all the time, so only a restart, which resets it, is worth an update on its own
+    static boolean hasChanged(Map<String, Number> published, Map<String, Number> values, double threshold) {
+        for (final Map.Entry<String, Number> value : values.entrySet()) {
+            final double before = published.get(value.getKey()).doubleValue();
+            final double after = value.getValue().doubleValue();
+            if (UPTIME.equals(value.getKey())) {
+                if (after < before) {
+                    return true;
+                }
+            } else if (Math.abs(after - before) > threshold * Math.max(Math.abs(before), Math.abs(after))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A gateway restarted in between starts its totals over
+    private static long delta(long total, long before) {
+        return total >= before ? total - before : total;
+    }
+
+    private static double round(double value, int scale) {
+        return (double) Math.round(value * scale) / scale;
+    }
+}
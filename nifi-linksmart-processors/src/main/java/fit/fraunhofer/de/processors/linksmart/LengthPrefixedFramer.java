@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Splits the stream into frames that announce their own length up front, which also allows binary payloads.
+ * Only the header is inspected; the payload is copied out of the buffer in bulk. A frame whose payload spans
+ * several reads is filled up across calls, so frames may be larger than the NuProcess buffer. A frame larger
+ * than the streaming threshold is handed off as an empty head message followed by parts, as they arrive
+ * (see {@link MessageStream}), instead of being held in memory as a whole. A frame announcing more than the
+ * maximum frame length fails framing, as the header is most likely garbage rather than a real length.
+ */
+final class LengthPrefixedFramer implements Framer {
+
+    enum Prefix {
+        // 4-byte big-endian unsigned length
+        INT32,
+        // Unsigned LEB128 length, as used by protobuf's writeDelimitedTo()
+        VARINT,
+        // "<decimal length>:<payload>," as specified on https://cr.yp.to/proto/netstrings.txt
+        NETSTRING
+    }
+
+    private static final int MAX_VARINT_BYTES = 5;
+    private static final int MAX_NETSTRING_DIGITS = 10;
+    static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private final MessagePool pool;
+    private final Prefix prefix;
+    private final int streamingThreshold;
+    private final int maxFrameLength;
+
+    private boolean inFrame; // The header of the current frame has been read
+    private int expected;
+    private int received;
+    private boolean streaming;
+    private Message current; // Payload not handed off yet: the whole frame, or the last part of a streamed one
+    private boolean awaitingTrailer;
+
+    LengthPrefixedFramer(MessagePool pool, Prefix prefix) {
+        this(pool, prefix, Integer.MAX_VALUE);
+    }
+
+    LengthPrefixedFramer(MessagePool pool, Prefix prefix, int streamingThreshold) {
+        this(pool, prefix, streamingThreshold, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    LengthPrefixedFramer(MessagePool pool, Prefix prefix, int streamingThreshold, int maxFrameLength) {
+        this.pool = pool;
+        this.prefix = prefix;
+        this.streamingThreshold = streamingThreshold;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public void frame(ByteBuffer buffer, Consumer<Message> sink) {
+        final long arrivalNanos = System.nanoTime();
+
+        while (true) {
+            if (!inFrame) {
+                final int length = readHeader(buffer);
+                if (length < 0) {
+                    return; // Header is incomplete and stays in the buffer
+                }
+                if (length > maxFrameLength) {
+                    throw new IllegalStateException("Frame length " + length + " exceeds the maximum of " + maxFrameLength + " bytes");
+                }
+                inFrame = true;
+                expected = length;
+                received = 0;
+                streaming = length > streamingThreshold;
+                awaitingTrailer = prefix == Prefix.NETSTRING;
+                if (streaming) {
+                    final Message head = pool.acquire();
+                    head.reset(0);
+                    head.setContinued(true);
+                    head.setTimestamp(arrivalNanos);
+                    sink.accept(head);
+                } else {
+                    current = pool.acquire();
+                    current.reset(length);
+                }
+            }
+
+            if (received < expected) {
+                final int n = Math.min(buffer.remaining(), expected - received);
+                if (n == 0) {
+                    return;
+                }
+                if (streaming) {
+                    final Message part = pool.acquire();
+                    part.reset(n);
+                    part.append(buffer, n);
+                    part.setTimestamp(arrivalNanos);
+                    if (received + n < expected) {
+                        part.setContinued(true);
+                        sink.accept(part);
+                    } else {
+                        current = part; // The last part waits for the netstring trailer like a whole frame
+                    }
+                } else {
+                    current.append(buffer, n);
+                }
+                received += n;
+                if (received < expected) {
+                    return;
+                }
+            }
+
+            if (awaitingTrailer) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                if (buffer.get() != ',') {
+                    throw new IllegalStateException("Netstring is not terminated by ','");
+                }
+                awaitingTrailer = false;
+            }
+
+            final Message message = current;
+            current = null;
+            inFrame = false;
+            message.setTimestamp(arrivalNanos);
+            sink.accept(message);
+        }
+    }
+
+    // Returns the payload length and consumes the header, or returns -1 and consumes nothing if the header is incomplete
+    private int readHeader(ByteBuffer buffer) {
+        final int start = buffer.position();
+        switch (prefix) {
+            case INT32: {
+                if (buffer.remaining() < 4) {
+                    return -1;
+                }
+                final int length = buffer.getInt(); // ByteBuffers are big-endian unless told otherwise
+                if (length < 0) {
+                    throw new IllegalStateException("Frame length " + (length & 0xFFFFFFFFL) + " is too large");
+                }
+                return length;
+            }
+            case VARINT: {
+                long length = 0;
+                for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.position(start);
+                        return -1;
+                    }
+                    final byte b = buffer.get();
+                    length |= (long) (b & 0x7F) << (7 * i);
+                    if ((b & 0x80) == 0) {
+                        if (length > Integer.MAX_VALUE) {
+                            throw new IllegalStateException("Frame length " + length + " is too large");
+                        }
+                        return (int) length;
+                    }
+                }
+                throw new IllegalStateException("Varint frame length is longer than " + MAX_VARINT_BYTES + " bytes");
+            }
+            default: {
+                long length = 0;
+                for (int i = 0; i <= MAX_NETSTRING_DIGITS; i++) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.position(start);
+                        return -1;
+                    }
+                    final byte b = buffer.get();
+                    if (b == ':' && i > 0) {
+                        if (length > Integer.MAX_VALUE) {
+                            throw new IllegalStateException("Frame length " + length + " is too large");
+                        }
+                        return (int) length;
+                    }
+                    if (b < '0' || b > '9' || i == MAX_NETSTRING_DIGITS) {
+                        throw new IllegalStateException("Invalid netstring length prefix");
+                    }
+                    length = length * 10 + (b - '0');
+                }
+                throw new IllegalStateException("Invalid netstring length prefix");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Splits the bytes of a NuProcess buffer into newline terminated messages. The buffer is scanned
+ * as a plain array (copied once in bulk for direct buffers) and every complete line is handed off
+ * as a pooled {@link Message}, without the trailing "\n" or "\r\n".
+ * <p>
+ * A line longer than the streaming threshold, or one that does not fit into the buffer at all, is
+ * handed off as an empty head message followed by parts, as they arrive (see {@link MessageStream}).
+ */
+final class LineFramer implements Framer {
+
+    private final MessagePool pool;
+    private final int streamingThreshold;
+    private byte[] scratch = new byte[0];
+    private boolean streaming; // Parts of the current line have been handed off already
+
+    LineFramer(MessagePool pool) {
+        this(pool, Integer.MAX_VALUE);
+    }
+
+    LineFramer(MessagePool pool, int streamingThreshold) {
+        this.pool = pool;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    // A trailing partial line is left in the buffer, unless it has to be streamed
+    @Override
+    public void frame(ByteBuffer buffer, Consumer<Message> sink) {
+        final int start = buffer.position();
+        final int total = buffer.remaining();
+
+        final byte[] bytes;
+        final int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + start;
+        } else {
+            if (scratch.length < total) {
+                scratch = new byte[total];
+            }
+            buffer.get(scratch, 0, total);
+            bytes = scratch;
+            offset = 0;
+        }
+
+        // All lines of one read share the same arrival time
+        final long arrivalNanos = System.nanoTime();
+        final int end = offset + total;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] == '\n') {
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+
+                if (!streaming && lineEnd - lineStart > streamingThreshold) {
+                    startStream(arrivalNanos, sink);
+                }
+                emit(bytes, lineStart, lineEnd - lineStart, false, arrivalNanos, sink);
+                streaming = false;
+
+                lineStart = i + 1;
+            }
+        }
+
+        // Without a new line in sight, a partial line is handed off once it is too large, or once the buffer
+        // is full, since NuProcess could not read any further otherwise. A trailing "\r" is kept back,
+        // as it may be followed by the "\n".
+        int pending = end - lineStart;
+        if (pending > 0 && (streaming || pending > streamingThreshold || pending == buffer.capacity())) {
+            if (bytes[end - 1] == '\r') {
+                pending--;
+            }
+            if (pending > 0) {
+                if (!streaming) {
+                    startStream(arrivalNanos, sink);
+                    streaming = true;
+                }
+                emit(bytes, lineStart, pending, true, arrivalNanos, sink);
+                lineStart += pending;
+            }
+        }
+
+        // Move to the last break point, so that the next read will always start there
+        buffer.position(start + (lineStart - offset));
+    }
+
+    private void startStream(long arrivalNanos, Consumer<Message> sink) {
+        final Message head = pool.acquire();
+        head.reset(0);
+        head.setContinued(true);
+        head.setTimestamp(arrivalNanos);
+        sink.accept(head);
+    }
+
+    private void emit(byte[] bytes, int offset, int length, boolean continued, long arrivalNanos, Consumer<Message> sink) {
+        final Message message = pool.acquire();
+        message.set(bytes, offset, length);
+        message.setContinued(continued);
+        message.setTimestamp(arrivalNanos);
+        sink.accept(message);
+    }
+}
@@ -16,13 +16,16 @@
  */
 package fit.fraunhofer.de.processors.linksmart;
 
-import com.zaxxer.nuprocess.NuProcess;
-import com.zaxxer.nuprocess.NuProcessBuilder;
+import com.google.gson.Gson;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
@@ -30,24 +33,53 @@ import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 @Tags({"linksmart"})
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
 @CapabilityDescription("This is a Nifi processor which serves similar as a LinkSmart gateway.")
 @ReadsAttributes({@ReadsAttribute(attribute = "", description = "")})
-@WritesAttributes({@WritesAttribute(attribute = "", description = "")})
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "The number of records in the FlowFile, if a <Record Writer> is configured."),
+        @WritesAttribute(attribute = "mime.type", description = "The MIME type of the <Compression> format if the content is compressed, " +
+                "otherwise the MIME type of the <Record Writer>, if one is configured."),
+        @WritesAttribute(attribute = "filename", description = "The file extension of the <Compression> format is appended, if the content is compressed."),
+        @WritesAttribute(attribute = "linksmart.instance.index", description = "The zero-based index of the copy of the sub-process which wrote " +
+                "the lines of a FlowFile sent to the stderr relationship.")})
 @TriggerSerially  // TODO: consider whether trigger serially could help
 public class LinksmartGateway extends AbstractProcessor {
 
@@ -59,10 +91,22 @@ public class LinksmartGateway extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor PROCESS_INSTANCES = new PropertyDescriptor.Builder()
+            .name("PROCESS_INSTANCES")
+            .displayName("Process Instances")
+            .description("The number of copies of the <Command Line> to run. Every copy has its own message queue, and messages of all copies are " +
+                    "batched together. Each copy finds its zero-based index in the environment variable " + ProcessInstance.ENV_INSTANCE_INDEX +
+                    " and the total number of copies in " + ProcessInstance.ENV_INSTANCE_COUNT + ".")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+
     public static final PropertyDescriptor MAX_MESSAGE_QUEUE_SIZE = new PropertyDescriptor.Builder()
             .name("MAX_MESSAGE_QUEUE_SIZE")
             .displayName("Maximum Message Queue Size")
             .description("The maximum size of the internal queue used to buffer messages being transferred from the underlying channel to the processor. " +
+                    "With multiple <Process Instances>, each instance has a queue of this size. " +
                     "Setting this value higher allows more messages to be buffered in memory during surges of incoming messages, but increases the total " +
                     "memory used by the processor.")
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
@@ -92,31 +136,285 @@ public class LinksmartGateway extends AbstractProcessor {
             .build();
 
 
+    public static final PropertyDescriptor MAX_BATCH_LATENCY = new PropertyDescriptor.Builder()
+            .name("MAX_BATCH_LATENCY")
+            .displayName("Max Batch Latency")
+            .description("The maximum amount of time a message may wait for its batch to be filled up. Once the oldest queued message is older " +
+                    "than this, the messages available so far are flushed as a partial batch. If not set, only full batches (see <Max Batch Size> " +
+                    "property) are emitted.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .expressionLanguageSupported(false)
+            .required(false)
+            .build();
+
+
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("RECORD_READER")
+            .displayName("Record Reader")
+            .description("The Record Reader used to parse the records of each message, if a <Record Writer> is configured. If not set, " +
+                    "every message becomes a record with a single string field named 'message'.")
+            .identifiesControllerService(RecordReaderFactory.class)
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("RECORD_WRITER")
+            .displayName("Record Writer")
+            .description("If set, every batch is written as a single record set with this Record Writer instead of joining the messages " +
+                    "with the <Batching Message Delimiter>. Messages that cannot be parsed are routed to 'parse.failure'. " +
+                    "Streamed messages (see <Streaming Threshold> property) are always written as they are.")
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
+            .build();
+
+
+    static final AllowableValue COMPRESSION_NONE = new AllowableValue("none", "none", "The content is not compressed.");
+    static final AllowableValue COMPRESSION_GZIP = new AllowableValue("gzip", "gzip",
+            "The content is compressed in the gzip format, which CompressContent can decompress.");
+    static final AllowableValue COMPRESSION_DEFLATE = new AllowableValue("deflate", "deflate",
+            "The content is compressed in the zlib format (RFC 1950).");
+
+    public static final PropertyDescriptor COMPRESSION = new PropertyDescriptor.Builder()
+            .name("COMPRESSION")
+            .displayName("Compression")
+            .description("Compresses the content of the FlowFiles while it is written, which saves a separate CompressContent step. " +
+                    "The mime.type attribute is set to the compression format, and the file extension is appended to the filename attribute.")
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_GZIP, COMPRESSION_DEFLATE)
+            .defaultValue(COMPRESSION_NONE.getValue())
+            .required(true)
+            .build();
+
+
+    public static final PropertyDescriptor METRICS_INTERVAL = new PropertyDescriptor.Builder()
+            .name("METRICS_INTERVAL")
+            .displayName("Metrics Snapshot Interval")
+            .description("If set, a FlowFile with a JSON snapshot of the processor's statistics is sent to the 'metrics' relationship at this " +
+                    "interval: messages and bytes per second read from the sub-process, queue depth high-water mark, dropped messages, " +
+                    "batch fill ratio and percentiles of the time from reading a message until its FlowFile is transferred.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(false)
+            .build();
+
+
+    static final AllowableValue FRAMING_LINE = new AllowableValue(FramingStrategy.LINE.name(), "Line",
+            "Every line is a message. The new line symbol at the end (\\n or \\r\\n) is not part of the message.");
+    static final AllowableValue FRAMING_INT32_LENGTH = new AllowableValue(FramingStrategy.INT32_LENGTH.name(), "4-Byte Length Prefix",
+            "Every message is preceded by its length in bytes as a 4-byte big-endian integer.");
+    static final AllowableValue FRAMING_VARINT_LENGTH = new AllowableValue(FramingStrategy.VARINT_LENGTH.name(), "Varint Length Prefix",
+            "Every message is preceded by its length in bytes as an unsigned varint, as written by protobuf's writeDelimitedTo().");
+    static final AllowableValue FRAMING_NETSTRING = new AllowableValue(FramingStrategy.NETSTRING.name(), "Netstring",
+            "Every message is written as a netstring: <length in decimal>:<message>,");
+
+    public static final PropertyDescriptor FRAMING_STRATEGY = new PropertyDescriptor.Builder()
+            .name("FRAMING_STRATEGY")
+            .displayName("Framing Strategy")
+            .description("Specifies how the stdout of the sub-process is split into messages. The length prefixed strategies allow binary messages. " +
+                    "If the sub-process violates the length prefixed format, all further output is discarded and an error is reported.")
+            .allowableValues(FRAMING_LINE, FRAMING_INT32_LENGTH, FRAMING_VARINT_LENGTH, FRAMING_NETSTRING)
+            .defaultValue(FRAMING_LINE.getValue())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor STREAMING_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("STREAMING_THRESHOLD")
+            .displayName("Streaming Threshold")
+            .description("If set, messages larger than this are not held in memory as a whole, but streamed into the content of a FlowFile of " +
+                    "their own while they are read. Parts of a streamed message are never dropped or spilled, but held back until the processor has taken " +
+                    "the ones before. If the read buffer of the sub-process fills up meanwhile, the message is aborted. " +
+                    "If not set, messages are only streamed if they have to be: with the 'Line' framing strategy, lines that do not fit into " +
+                    "the read buffer of the sub-process are always streamed.")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(0, Integer.MAX_VALUE))
+            .required(false)
+            .build();
+
+    static final AllowableValue OVERFLOW_BLOCK = new AllowableValue(OverflowPolicy.BLOCK.name(), "Block",
+            "Hold back new messages until the queue has room again, leaving what the sub-process writes meanwhile in its read buffer. " +
+                    "NuProcess cannot stop reading the sub-process without holding up the other sub-processes sharing its reading thread, " +
+                    "so once that buffer is full as well, new messages are dropped. Use 'Spill to Disk' to keep them.");
+    static final AllowableValue OVERFLOW_DROP_OLDEST = new AllowableValue(OverflowPolicy.DROP_OLDEST.name(), "Drop Oldest",
+            "Discard the oldest queued message to make room for the new one.");
+    static final AllowableValue OVERFLOW_DROP_NEWEST = new AllowableValue(OverflowPolicy.DROP_NEWEST.name(), "Drop Newest",
+            "Discard the new message.");
+    static final AllowableValue OVERFLOW_SPILL = new AllowableValue(OverflowPolicy.SPILL.name(), "Spill to Disk",
+            "Append messages to a file in the <Spill Directory> until the processor has caught up with the queue.");
+
+    public static final PropertyDescriptor OVERFLOW_POLICY = new PropertyDescriptor.Builder()
+            .name("OVERFLOW_POLICY")
+            .displayName("Queue Overflow Policy")
+            .description("Specifies what happens to a new message when the message queue is full (see <Maximum Message Queue Size> property).")
+            .allowableValues(OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST, OVERFLOW_SPILL)
+            .defaultValue(OVERFLOW_DROP_NEWEST.getValue())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor SPILL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("SPILL_DIRECTORY")
+            .displayName("Spill Directory")
+            .description("The directory in which messages are spilled when the <Queue Overflow Policy> is 'Spill to Disk'. " +
+                    "If not set, the temporary directory of the JVM is used.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor MAX_SPILL_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_SPILL_SIZE")
+            .displayName("Maximum Spill Size")
+            .description("The disk space the spill of a sub-process may take up when the <Queue Overflow Policy> is 'Spill to Disk'. " +
+                    "Once it is reached, new messages are dropped until the processor has read enough of the spill back. " +
+                    "Space is given back while the spill is read, in segments of " + MessageSpill.DEFAULT_SEGMENT_SIZE / (1024 * 1024) + " MB.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 GB")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_RESTARTS = new PropertyDescriptor.Builder()
+            .name("MAX_RESTARTS")
+            .displayName("Maximum Restarts")
+            .description("The maximum number of times the sub-process is started again within the <Restart Window> after it has exited. " +
+                    "Once this is reached, the exit is reported as an error until the window has moved on. If 0, the sub-process is never restarted.")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("5")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor RESTART_WINDOW = new PropertyDescriptor.Builder()
+            .name("RESTART_WINDOW")
+            .displayName("Restart Window")
+            .description("The period of time over which restarts are counted (see <Maximum Restarts> property).")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 min")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor INITIAL_RESTART_BACKOFF = new PropertyDescriptor.Builder()
+            .name("INITIAL_RESTART_BACKOFF")
+            .displayName("Initial Restart Backoff")
+            .description("How long to wait before restarting a sub-process that has exited. The wait is doubled with every further restart, " +
+                    "up to the <Maximum Restart Backoff>, and starts over once the sub-process has kept running for longer than that.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 sec")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_RESTART_BACKOFF = new PropertyDescriptor.Builder()
+            .name("MAX_RESTART_BACKOFF")
+            .displayName("Maximum Restart Backoff")
+            .description("The longest time to wait before restarting a sub-process that has exited.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor WARM_STANDBY = new PropertyDescriptor.Builder()
+            .name("WARM_STANDBY")
+            .displayName("Warm Standby")
+            .description("Whether a second copy of every sub-process is kept running, whose output is discarded until the active copy exits. " +
+                    "It then takes over right away, without waiting for the sub-process to start up, and a new standby is started. " +
+                    "Standby starts count as restarts.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+
+    static final AllowableValue QUEUE_LINKED = new AllowableValue("LINKED", "Linked Blocking Queue",
+            "A java.util.concurrent.LinkedBlockingQueue. Allocates a node per message and locks on both ends.");
+    static final AllowableValue QUEUE_SPSC_RING = new AllowableValue("SPSC_RING", "Single-Producer Ring Buffer",
+            "A pre-allocated, lock-free ring buffer for one reading thread and one processor thread.");
+    static final AllowableValue QUEUE_MPSC_RING = new AllowableValue("MPSC_RING", "Multi-Producer Ring Buffer",
+            "A pre-allocated, lock-free ring buffer that can be fed by several reading threads at once.");
+
+    public static final PropertyDescriptor QUEUE_IMPLEMENTATION = new PropertyDescriptor.Builder()
+            .name("QUEUE_IMPLEMENTATION")
+            .displayName("Message Queue Implementation")
+            .description("The data structure used to hand messages from the sub-process over to the processor. The capacity of the ring buffers " +
+                    "is rounded up to the next power of two of <Maximum Message Queue Size>. The ring buffers cannot be combined with the " +
+                    "'Drop Oldest' overflow policy, because evicting a message makes the reading thread a second consumer.")
+            .allowableValues(QUEUE_LINKED, QUEUE_SPSC_RING, QUEUE_MPSC_RING)
+            .defaultValue(QUEUE_LINKED.getValue())
+            .required(true)
+            .build();
+
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Messages received successfully will be sent out this relationship.")
             .build();
 
+    public static final Relationship REL_METRICS = new Relationship.Builder()
+            .name("metrics")
+            .description("Snapshots of the processor's statistics will be sent out this relationship. Only available if <Metrics Snapshot Interval> is set.")
+            .build();
+
+    public static final Relationship REL_STDERR = new Relationship.Builder()
+            .name("stderr")
+            .description("Lines written by the sub-process to stderr will be sent out this relationship, joined with the <Batching Message Delimiter>. " +
+                    "Writing to stderr is not treated as a failure, only the exit of the sub-process is.")
+            .build();
+
+    public static final Relationship REL_PARSE_FAILURE = new Relationship.Builder()
+            .name("parse.failure")
+            .description("Messages which the <Record Reader> cannot parse will be sent out this relationship, joined with the " +
+                    "<Batching Message Delimiter>. Only available if <Record Writer> is set.")
+            .build();
+
+    static final String MESSAGE_FIELD = "message";
+    static final String RECORD_COUNT_ATTRIBUTE = "record.count";
+    static final String INSTANCE_INDEX_ATTRIBUTE = "linksmart.instance.index";
+
+    // Schema of the records created for messages when no <Record Reader> is configured
+    private static final RecordSchema MESSAGE_SCHEMA = new SimpleRecordSchema(
+            Collections.singletonList(new RecordField(MESSAGE_FIELD, RecordFieldType.STRING.getDataType())));
+
 
     private List<PropertyDescriptor> descriptors;
 
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships; // Includes 'metrics' only while snapshots are emitted
 
-    private BlockingQueue<String> stdoutQueue;
-    private BlockingQueue<String> stderrQueue;
-    private NuProcess process;
+    private final List<ProcessInstance> instances = new ArrayList<>(); // Includes instances of a previous run which still have messages
+    private int processCount;
+    private int nextInstance; // Where filling the next batch starts, so that all queue shards are drained fairly
+    private List<Message> batch; // Messages taken from the queues for the next FlowFile, oldest first
+    private int maxBatchSize;
+    private long maxBatchLatencyNanos; // Negative if partial batches are never flushed
+    private byte[] msgDelimiterBytes;
+    private RecordReaderFactory recordReaderFactory;
+    private RecordSetWriterFactory recordWriterFactory;
+    private String compression;
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private GatewayStatistics statistics; // Shared with other processors in this JVM
+    private long metricsIntervalNanos; // Negative if no snapshots are emitted
+    private boolean warmStandby;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(COMMAND_LINE);
+        descriptors.add(PROCESS_INSTANCES);
+        descriptors.add(FRAMING_STRATEGY);
+        descriptors.add(STREAMING_THRESHOLD);
         descriptors.add(MAX_MESSAGE_QUEUE_SIZE);
+        descriptors.add(QUEUE_IMPLEMENTATION);
         descriptors.add(MAX_BATCH_SIZE);
         descriptors.add(MESSAGE_DELIMITER);
+        descriptors.add(MAX_BATCH_LATENCY);
+        descriptors.add(RECORD_READER);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(COMPRESSION);
+        descriptors.add(METRICS_INTERVAL);
+        descriptors.add(OVERFLOW_POLICY);
+        descriptors.add(SPILL_DIRECTORY);
+        descriptors.add(MAX_SPILL_SIZE);
+        descriptors.add(MAX_RESTARTS);
+        descriptors.add(RESTART_WINDOW);
+        descriptors.add(INITIAL_RESTART_BACKOFF);
+        descriptors.add(MAX_RESTART_BACKOFF);
+        descriptors.add(WARM_STANDBY);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(REL_SUCCESS);
+        relationships.add(REL_STDERR);
         this.relationships = Collections.unmodifiableSet(relationships);
 
 
@@ -127,107 +425,674 @@ public class LinksmartGateway extends AbstractProcessor {
         return this.relationships;
     }
 
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        // Otherwise these relationships would have to be connected or auto-terminated by every flow, also by the ones
+        // that never use them
+        if (METRICS_INTERVAL.equals(descriptor)) {
+            updateRelationship(REL_METRICS, newValue != null);
+        } else if (RECORD_WRITER.equals(descriptor)) {
+            updateRelationship(REL_PARSE_FAILURE, newValue != null);
+        }
+    }
+
+    private void updateRelationship(final Relationship relationship, final boolean available) {
+        final Set<Relationship> relationships = new HashSet<>(this.relationships);
+        if (available) {
+            relationships.add(relationship);
+        } else {
+            relationships.remove(relationship);
+        }
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
     @Override
     public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+
+        final String queueImplementation = validationContext.getProperty(QUEUE_IMPLEMENTATION).getValue();
+        final String overflowPolicy = validationContext.getProperty(OVERFLOW_POLICY).getValue();
+        if (!QUEUE_LINKED.getValue().equals(queueImplementation) && OVERFLOW_DROP_OLDEST.getValue().equals(overflowPolicy)) {
+            results.add(new ValidationResult.Builder().subject(OVERFLOW_POLICY.getDisplayName()).input(overflowPolicy).valid(false)
+                    .explanation("the 'Drop Oldest' overflow policy requires the 'Linked Blocking Queue' message queue implementation").build());
+        }
+
+        if (validationContext.getProperty(RECORD_READER).isSet() && !validationContext.getProperty(RECORD_WRITER).isSet()) {
+            results.add(new ValidationResult.Builder().subject(RECORD_READER.getDisplayName()).valid(false)
+                    .explanation("a Record Reader is only used together with a Record Writer").build());
+        }
+
+        return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) throws Exception {
 
-        System.out.println("onSchedule called");
-
         final String cmd = context.getProperty(COMMAND_LINE).getValue();
         final int queueSize = context.getProperty(MAX_MESSAGE_QUEUE_SIZE).asInteger();
 
-        stdoutQueue = new LinkedBlockingQueue<>(queueSize);
-        stderrQueue = new LinkedBlockingQueue<>(20);
+        maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+        final String msgDelimiter = context.getProperty(MESSAGE_DELIMITER).getValue()
+                .replace("\\n", "\n").replace("\\r", "\r")
+                .replace("\\t", "\t");
+        msgDelimiterBytes = msgDelimiter.getBytes(StandardCharsets.UTF_8);
+
+        maxBatchLatencyNanos = context.getProperty(MAX_BATCH_LATENCY).isSet()
+                ? context.getProperty(MAX_BATCH_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS) : -1L;
+
+        recordReaderFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        recordWriterFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        compression = context.getProperty(COMPRESSION).getValue();
+        metricsIntervalNanos = context.getProperty(METRICS_INTERVAL).isSet()
+                ? context.getProperty(METRICS_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS) : -1L;
+
+        if (batch == null) {
+            batch = new ArrayList<>();
+        }
+        statistics = GatewayStatistics.register(getIdentifier(), System.nanoTime());
+
+        processCount = context.getProperty(PROCESS_INSTANCES).asInteger();
+        final String queueImplementation = context.getProperty(QUEUE_IMPLEMENTATION).getValue();
+        final FramingStrategy framingStrategy = FramingStrategy.valueOf(context.getProperty(FRAMING_STRATEGY).getValue());
+        final int streamingThreshold = context.getProperty(STREAMING_THRESHOLD).isSet()
+                ? context.getProperty(STREAMING_THRESHOLD).asDataSize(DataUnit.B).intValue() : Integer.MAX_VALUE;
+        final OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(context.getProperty(OVERFLOW_POLICY).getValue());
+        final String spillDirectory = context.getProperty(SPILL_DIRECTORY).getValue();
+        final long maxSpillSize = context.getProperty(MAX_SPILL_SIZE).asDataSize(DataUnit.B).longValue();
+        final int maxRestarts = context.getProperty(MAX_RESTARTS).asInteger();
+        final long restartWindowNanos = context.getProperty(RESTART_WINDOW).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long initialBackoffNanos = context.getProperty(INITIAL_RESTART_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long maxBackoffNanos = context.getProperty(MAX_RESTART_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS);
+        warmStandby = context.getProperty(WARM_STANDBY).asBoolean();
+
+        // Instances are reused by index, so messages left over from the previous run are emitted by this one instead of being lost
+        while (instances.size() < processCount) {
+            instances.add(new ProcessInstance(instances.size()));
+        }
 
         String[] cmdArray = cmd.trim().split("\\s+");
-        NuProcessBuilder pb = new NuProcessBuilder(cmdArray);
-        LinksmartProcessHandler handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue);
-        pb.setProcessListener(handler);
-        process = pb.start(); // TODO: wrap exception in more readable text
+        for (final ProcessInstance instance : instances) {
+            final int dropped = instance.configure(createQueue(queueImplementation, queueSize), queueSize, framingStrategy, streamingThreshold, overflowPolicy,
+                    spillDirectory == null ? null : new File(spillDirectory), maxSpillSize,
+                    new RestartBackoff(initialBackoffNanos, maxBackoffNanos, maxRestarts, restartWindowNanos));
+            if (dropped > 0) {
+                getLogger().warn("Dropped {} messages left over from the previous run, which did not fit into the new message queue.",
+                        new Object[]{dropped});
+            }
+            if (instance.getIndex() < processCount) {
+                instance.start(cmdArray, processCount); // TODO: wrap exception in more readable text
+                instance.getRestartBackoff().started(System.nanoTime());
+                statistics.started(System.nanoTime());
+                if (warmStandby) {
+                    instance.startStandby();
+                }
+            }
+        }
 
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
 
-        System.out.println("onTrigger called");
+        // Put messages into flowfiles
+        int batchSize;
+        while ((batchSize = nextBatchSize()) > 0) {
+            if (!writeBatch(session, batchSize)) {
+                break;
+            }
+        }
 
-        final int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
-        final String msgDelimiter = context.getProperty(MESSAGE_DELIMITER).getValue()
-                .replace("\\n", "\n").replace("\\r", "\r")
-                .replace("\\t", "\t");
+        long read = 0;
+        long readBytes = 0;
+        long dropped = 0;
+        long paused = 0;
+        long spilled = 0;
+        long stderrDropped = 0;
+        for (final ProcessInstance instance : instances) {
+            read += instance.takeReadCount();
+            readBytes += instance.takeReadBytes();
+            dropped += instance.takeDroppedCount();
+            paused += instance.takePausedCount();
+            spilled += instance.takeSpilledCount();
+            stderrDropped += instance.takeStderrDroppedCount();
+        }
+        adjustCounter(session, "Messages Read", read);
+        adjustCounter(session, "Bytes Read", readBytes);
+        adjustCounter(session, "Messages Dropped", dropped);
+        adjustCounter(session, "Sub-process Reads Paused", paused);
+        adjustCounter(session, "Messages Spilled", spilled);
+        adjustCounter(session, "Stderr Lines Dropped", stderrDropped);
+        metrics.addRead(read, readBytes);
+        metrics.addDropped(dropped);
+        statistics.addRead(read);
+        statistics.addDropped(dropped);
+        if (metricsIntervalNanos >= 0 && metrics.isSnapshotDue(metricsIntervalNanos)) {
+            writeMetrics(session);
+        }
 
-        byte[] msgDelimiterBytes = msgDelimiter.getBytes(Charset.forName("UTF-8"));
+        final StringBuilder errMsg = new StringBuilder();
+        final long now = System.nanoTime();
+        for (final ProcessInstance instance : instances) {
+            writeStderr(session, instance);
 
-        // Put messages into flowfiles
-        while (stdoutQueue.size() >= maxBatchSize) { // Continue to loop, as long as the remaining queue size is not less than the batch size
-            FlowFile flowFile = session.create();
-            for (int i = 0; i < maxBatchSize; i++) {
-                String msg = stdoutQueue.poll();
-                System.out.println("onTrigger got msg: " + msg);
-                final boolean writeDelimiter = (i > 0);
+            final String framingError = instance.takeFramingError();
+            if (framingError != null) {
+                getLogger().error(framingError);
+            }
+
+            supervise(session, instance, now, errMsg);
+        }
+
+        retireDrainedInstances();
+
+        if (errMsg.length() > 0) {
+            // The batches and the last lines of stderr are kept, as they were taken from the queues already
+            session.commit();
+            // Throw RuntimeException to let the Nifi framework handle it
+            throw new RuntimeException("Error while running sub-process: " + errMsg.toString().trim());
+        }
+
+        // TODO: consider whether to yield
+        context.yield();
 
+    }
+
+
+    private static void adjustCounter(final ProcessSession session, final String name, final long delta) {
+        if (delta != 0) {
+            session.adjustCounter(name, delta, false);
+        }
+    }
+
+    // Restarts an exited sub-process once its backoff has passed, and keeps the standby running
+    private void supervise(final ProcessSession session, final ProcessInstance instance, final long now, final StringBuilder errMsg) {
+        if (!instance.hasProcess()) {
+            return;
+        }
+        final RestartBackoff backoff = instance.getRestartBackoff();
+
+        final int promoted = instance.takePromotedCount();
+        if (promoted > 0) {
+            backoff.started(now);
+            statistics.started(now);
+            adjustCounter(session, "Standby Promotions", promoted);
+            getLogger().info("The standby of sub-process{} took over after it exited.", new Object[]{instanceLabel(instance)});
+        }
+
+        if (instance.isRunning()) {
+            if (warmStandby && backoff.isEnabled() && !instance.isStandbyRunning() && !backoff.isRateExceeded(now)) {
+                instance.startStandby();
+                backoff.recordRestart(now);
+                adjustCounter(session, "Sub-process Restarts", 1);
+            }
+            return;
+        }
+
+        if (!backoff.isRestartPending()) {
+            if (!backoff.isEnabled() || backoff.isRateExceeded(now)) {
+                errMsg.append("The sub-process").append(instanceLabel(instance)).append(" has stopped");
+                final Integer exitCode = instance.exitCode();
+                if (exitCode != null) {
+                    errMsg.append(" with exit code ").append(exitCode);
+                }
+                errMsg.append("! ");
+                return;
+            }
+            final long delayNanos = backoff.scheduleRestart(now);
+            getLogger().warn("The sub-process{} has stopped with exit code {}, restarting it in {} ms.",
+                    new Object[]{instanceLabel(instance), instance.exitCode(), TimeUnit.NANOSECONDS.toMillis(delayNanos)});
+        }
+
+        if (backoff.isRestartDue(now)) {
+            instance.restart();
+            backoff.recordRestart(now);
+            backoff.started(now);
+            statistics.started(now);
+            adjustCounter(session, "Sub-process Restarts", 1);
+        }
+    }
+
+    private String instanceLabel(final ProcessInstance instance) {
+        return processCount > 1 ? " #" + instance.getIndex() : "";
+    }
+
+    private void writeStderr(final ProcessSession session, final ProcessInstance instance) {
+        final List<String> lines = new ArrayList<>();
+        if (instance.drainStderr(lines) == 0) {
+            return;
+        }
+
+        FlowFile flowFile = session.create();
+        flowFile = session.write(flowFile, out -> {
+            for (int i = 0; i < lines.size(); i++) {
+                if (i > 0) {
+                    out.write(msgDelimiterBytes);
+                }
+                out.write(lines.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(INSTANCE_INDEX_ATTRIBUTE, String.valueOf(instance.getIndex()));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_STDERR);
+    }
+
+    private void writeMetrics(final ProcessSession session) {
+        final String json = new Gson().toJson(metrics.snapshot(maxBatchSize));
+        FlowFile flowFile = session.create();
+        flowFile = session.write(flowFile, out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+        flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
+        session.transfer(flowFile, REL_METRICS);
+    }
+
+    private static BlockingQueue<Message> createQueue(final String implementation, final int capacity) {
+        if (QUEUE_SPSC_RING.getValue().equals(implementation)) {
+            return new SpscRingBuffer<>(capacity);
+        } else if (QUEUE_MPSC_RING.getValue().equals(implementation)) {
+            return new MpscRingBuffer<>(capacity);
+        }
+        return new LinkedBlockingQueue<>(capacity);
+    }
+
+    // Number of messages for the next FlowFile: a full batch, an overdue partial batch, or 0 if there is nothing to emit yet
+    private int nextBatchSize() {
+        int available = batch.size();
+        for (final ProcessInstance instance : instances) {
+            available += instance.available();
+        }
+        metrics.sampleQueueDepth(available);
+        statistics.setQueueDepth(available);
+        if (available >= maxBatchSize) {
+            return maxBatchSize;
+        }
+
+        // A streamed message does not wait for the batch to fill up, since reading stalls until its parts are consumed
+        if (available > 0 && isStreamPending()) {
+            return available;
+        }
+
+        if (available > 0 && maxBatchLatencyNanos >= 0) {
+            final Long oldest = oldestTimestamp();
+            if (oldest != null && System.nanoTime() - oldest >= maxBatchLatencyNanos) {
+                return available;
+            }
+        }
+        return 0;
+    }
+
+    private boolean isStreamPending() {
+        for (final ProcessInstance instance : instances) {
+            if (instance.isStreaming()) {
+                return true;
+            }
+        }
+        for (final Message msg : batch) {
+            if (msg.getStream() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Long oldestTimestamp() {
+        if (!batch.isEmpty()) {
+            return batch.get(0).getTimestamp();
+        }
+        Long oldest = null;
+        for (final ProcessInstance instance : instances) {
+            try {
+                final Long timestamp = instance.oldestTimestamp();
+                if (timestamp != null && (oldest == null || timestamp - oldest < 0)) {
+                    oldest = timestamp;
+                }
+            } catch (IOException e) {
+                getLogger().warn("Failed to read from the spill file due to {}.", new Object[]{e.getMessage()}, e);
+            }
+        }
+        return oldest;
+    }
+
+    // Tops the batch up to the given size, taking an equal share from every queue shard in turn
+    private void fillBatch(final int batchSize) throws IOException {
+        final int shards = instances.size();
+        boolean progress = true;
+        while (batch.size() < batchSize && progress) {
+            progress = false;
+            final int share = Math.max(1, (batchSize - batch.size()) / shards);
+            for (int i = 0; i < shards && batch.size() < batchSize; i++) {
+                final ProcessInstance instance = instances.get((nextInstance + i) % shards);
+                if (instance.drainTo(batch, Math.min(share, batchSize - batch.size())) > 0) {
+                    progress = true;
+                }
+            }
+        }
+        nextInstance = (nextInstance + 1) % shards;
+    }
+
+    // Instances of a previous run beyond the current <Process Instances> are kept only until all their messages are emitted
+    private void retireDrainedInstances() {
+        for (int i = instances.size() - 1; i >= processCount; i--) {
+            final ProcessInstance instance = instances.get(i);
+            if (instance.available() == 0) {
                 try {
-                    flowFile = session.append(flowFile, out -> {
-                        if (writeDelimiter) {
-                            out.write(msgDelimiterBytes);
+                    instance.closeSpillIfEmpty();
+                } catch (IOException e) {
+                    getLogger().warn("Failed to delete the spill file due to {}.", new Object[]{e.getMessage()}, e);
+                }
+                instances.remove(i);
+            }
+        }
+        if (nextInstance >= instances.size()) {
+            nextInstance = 0;
+        }
+    }
+
+    // Returns false if the batch could not be written, in which case the unwritten messages are kept for the next FlowFile
+    private boolean writeBatch(final ProcessSession session, final int batchSize) {
+        try {
+            fillBatch(batchSize);
+        } catch (IOException e) {
+            getLogger().error("Failed to read messages from the spill file due to {}.", new Object[]{e.getMessage()}, e);
+            return false;
+        }
+
+        // A streamed message goes into a FlowFile of its own, so the batch is cut short in front of it
+        if (!batch.isEmpty() && batch.get(0).getStream() != null) {
+            return writeStreamedMessage(session, batch.get(0));
+        }
+        int count = 0;
+        while (count < batch.size() && count < batchSize && batch.get(count).getStream() == null) {
+            count++;
+        }
+        final List<Message> messages = batch.subList(0, count);
+        if (recordWriterFactory != null) {
+            return writeRecordBatch(session, messages);
+        }
+
+        FlowFile flowFile = session.create();
+        try {
+            // One write per FlowFile: the whole batch goes into a single buffered stream
+            flowFile = session.write(flowFile, out -> {
+                try (final OutputStream bufferedOut = new BufferedOutputStream(compress(out))) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        if (i > 0) {
+                            bufferedOut.write(msgDelimiterBytes);
                         }
+                        // Message bytes go straight into the content, without decoding them to a String
+                        messages.get(i).writeTo(bufferedOut);
+                    }
+                }
+            });
+            flowFile = markCompressed(session, flowFile);
+        } catch (Exception e) {
+            // Partly written content is discarded, so that no message is emitted twice or lost
+            getLogger().error("Failed to write contents of the messages to FlowFile due to {}. Keeping them for the next FlowFile.",
+                    new Object[]{e.getMessage()}, e);
+            session.remove(flowFile);
+            return false;
+        }
 
-                        out.write(msg.getBytes(Charset.forName("UTF-8")));
-                    });
+        recordWritten(messages);
+        for (final Message msg : messages) {
+            msg.release();
+        }
+        messages.clear();
+        session.transfer(flowFile, REL_SUCCESS);
+        return true;
+    }
+
+    // The whole batch goes into a single record set in one pass. If the records cannot be written, e.g. as the Record Writer
+    // rejects one of them, writing them again would fail the same way, so the whole batch goes to parse failure instead.
+    private boolean writeRecordBatch(final ProcessSession session, final List<Message> messages) {
+        final List<Message> invalid = new ArrayList<>();
+        final WriteResult[] result = {null};
+        final String[] mimeType = {null};
+        final FlowFile original = session.create();
+        FlowFile flowFile = original;
+        try {
+            flowFile = session.write(flowFile, out -> {
+                RecordSetWriter writer = null;
+                try {
+                    for (final Message msg : messages) {
+                        final List<Record> records;
+                        try {
+                            records = parseRecords(original, msg);
+                        } catch (MalformedRecordException | SchemaNotFoundException | IOException e) {
+                            getLogger().debug("Failed to parse message due to {}.", new Object[]{e.getMessage()}, e);
+                            invalid.add(msg);
+                            continue;
+                        }
+
+                        for (final Record record : records) {
+                            if (writer == null) {
+                                // The schema is only known once the first record has been read
+                                final RecordSchema schema = recordWriterFactory.getSchema(original.getAttributes(), record.getSchema());
+                                writer = recordWriterFactory.createWriter(getLogger(), schema, compress(out));
+                                writer.beginRecordSet();
+                            }
+                            writer.write(record);
+                        }
+                    }
 
-                } catch (Exception e) { // TODO: implement recovery
-                    getLogger().error("Failed to write contents of the message to FlowFile due to {}.",
-                            new Object[]{e.getMessage()}, e);
-                    break;
+                    if (writer != null) {
+                        result[0] = writer.finishRecordSet();
+                        mimeType[0] = writer.getMimeType();
+                    }
+                } catch (SchemaNotFoundException e) {
+                    throw new ProcessException("Failed to determine the schema of the Record Writer", e);
+                } finally {
+                    if (writer != null) {
+                        writer.close();
+                    }
                 }
+            });
+        } catch (Exception e) {
+            getLogger().error("Failed to write the records of {} messages to FlowFile due to {}. Routing them to parse failure.",
+                    new Object[]{messages.size(), e.getMessage()}, e);
+            invalid.clear();
+            invalid.addAll(messages);
+            result[0] = null;
+        }
+
+        if (!invalid.isEmpty()) {
+            FlowFile failure = session.create();
+            try {
+                failure = session.write(failure, out -> {
+                    final OutputStream bufferedOut = new BufferedOutputStream(out);
+                    for (int i = 0; i < invalid.size(); i++) {
+                        if (i > 0) {
+                            bufferedOut.write(msgDelimiterBytes);
+                        }
+                        invalid.get(i).writeTo(bufferedOut);
+                    }
+                    bufferedOut.flush();
+                });
+            } catch (Exception e) {
+                // Nothing has been transferred yet, so all messages can be kept for the next FlowFile
+                getLogger().error("Failed to write the messages which could not be parsed to FlowFile due to {}.",
+                        new Object[]{e.getMessage()}, e);
+                session.remove(failure);
+                session.remove(flowFile);
+                return false;
             }
+            session.transfer(failure, REL_PARSE_FAILURE);
+        }
+
+        if (result[0] == null) {
+            session.remove(flowFile); // None of the messages had a record
+        } else {
+            final Map<String, String> attributes = new HashMap<>(result[0].getAttributes());
+            attributes.put(RECORD_COUNT_ATTRIBUTE, String.valueOf(result[0].getRecordCount()));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), mimeType[0]);
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            flowFile = markCompressed(session, flowFile);
             session.transfer(flowFile, REL_SUCCESS);
         }
 
-        // In case stderr not empty, gather the exception message
-        String errMsg = "";
-        while (stderrQueue.size() > 0) {
-            errMsg = errMsg + stderrQueue.poll();
+        recordWritten(messages);
+        for (final Message msg : messages) {
+            msg.release();
         }
+        messages.clear();
+        return true;
+    }
 
-        // check if process still running
-        if (process != null) {
-            if (!process.isRunning()) {
-                errMsg = errMsg + "The sub-process has stopped!";
+    private List<Record> parseRecords(final FlowFile flowFile, final Message msg)
+            throws MalformedRecordException, SchemaNotFoundException, IOException {
+        if (recordReaderFactory == null) {
+            return Collections.singletonList(new MapRecord(MESSAGE_SCHEMA, Collections.singletonMap(MESSAGE_FIELD, msg.toString())));
+        }
+
+        final List<Record> records = new ArrayList<>(1);
+        try (final InputStream in = new ByteArrayInputStream(msg.array(), 0, msg.length());
+             final RecordReader reader = recordReaderFactory.createRecordReader(flowFile, in, getLogger())) {
+            Record record;
+            while ((record = reader.nextRecord()) != null) {
+                records.add(record);
             }
         }
+        return records;
+    }
 
-        if (!"".equals(errMsg)) {
-            // Throw RuntimeException to let the Nifi framework handle it
-            throw new RuntimeException("Error while running sub-process: " + errMsg);
+    private void recordWritten(final List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        metrics.recordBatch(messages.size());
+        final long now = System.nanoTime();
+        for (final Message msg : messages) {
+            metrics.recordLatency(now - msg.getTimestamp());
         }
+    }
 
-        // TODO: consider whether to yield
-        context.yield();
+    // Copies the parts of the message into the content as they arrive. Unlike a batch, a streamed message can not be
+    // written again after a failure, so it is dropped in that case.
+    private boolean writeStreamedMessage(final ProcessSession session, final Message head) {
+        final MessageStream stream = head.getStream();
+        final long readNanos = head.getTimestamp();
+        FlowFile flowFile = session.create();
+        try {
+            flowFile = session.write(flowFile, out -> {
+                try (final OutputStream compressedOut = compress(out)) {
+                    head.writeTo(compressedOut);
+                    Message part;
+                    do {
+                        part = nextPart(stream);
+                        try {
+                            part.writeTo(compressedOut);
+                        } finally {
+                            part.release();
+                        }
+                    } while (part.isContinued());
+                }
+            });
+            flowFile = markCompressed(session, flowFile);
+        } catch (Exception e) {
+            getLogger().error("Failed to stream a large message into a FlowFile due to {}. The message is dropped.",
+                    new Object[]{e.getMessage()}, e);
+            stream.abort();
+            session.remove(flowFile);
+            return false;
+        } finally {
+            batch.remove(0);
+            head.release();
+        }
+        session.adjustCounter("Messages Streamed", 1, false);
+        metrics.recordLatency(System.nanoTime() - readNanos);
+        session.transfer(flowFile, REL_SUCCESS);
+        return true;
+    }
+
+    // Closing the returned stream finishes the compressed data. NiFi does not mind the content stream being closed.
+    private OutputStream compress(final OutputStream out) throws IOException {
+        if (COMPRESSION_GZIP.getValue().equals(compression)) {
+            return new GZIPOutputStream(out);
+        } else if (COMPRESSION_DEFLATE.getValue().equals(compression)) {
+            return new DeflaterOutputStream(out);
+        }
+        return out;
+    }
 
+    private FlowFile markCompressed(final ProcessSession session, FlowFile flowFile) {
+        final String mimeType;
+        final String extension;
+        if (COMPRESSION_GZIP.getValue().equals(compression)) {
+            mimeType = "application/gzip";
+            extension = ".gz";
+        } else if (COMPRESSION_DEFLATE.getValue().equals(compression)) {
+            mimeType = "application/zlib";
+            extension = ".zlib";
+        } else {
+            return flowFile;
+        }
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+        final String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+        if (filename != null) {
+            attributes.put(CoreAttributes.FILENAME.key(), filename + extension);
+        }
+        return session.putAllAttributes(flowFile, attributes);
     }
 
+    private Message nextPart(final MessageStream stream) throws IOException {
+        try {
+            Message part;
+            while ((part = stream.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (stream.isAborted()) {
+                    throw new IOException("the sub-process stopped writing the message before it was complete");
+                }
+                if (!isScheduled()) {
+                    throw new IOException("the processor was stopped before the message was complete");
+                }
+            }
+            return part;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rest of the message");
+        }
+    }
 
     @OnStopped
     public void onStopped(final ProcessContext context) throws Exception {
-        System.out.println("onStopped called");
+        // Release the pump threads in case they are blocked on a full queue
+        for (final ProcessInstance instance : instances) {
+            instance.stopReading();
+        }
 
         // TODO: consider possibility to simplify the process
-        if (process != null && process.isRunning()) {
+        boolean running = false;
+        for (final ProcessInstance instance : instances) {
+            running |= instance.isRunning() || instance.isStandbyRunning();
+        }
+
+        if (running) {
             getLogger().info("Soft-killing sub-process...");
-            process.destroy(false);
+            for (final ProcessInstance instance : instances) {
+                instance.destroy(false);
+            }
 
-            if (process.waitFor(3, TimeUnit.SECONDS) == Integer.MIN_VALUE) { // If timeout is reached
-                getLogger().warn("Failed to kill sub-process via soft-killing failed. Killing it by force now. Sub-process may not exit cleanly.");
-                process.destroy(true);
+            // All instances share the same grace period
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            for (final ProcessInstance instance : instances) {
+                final long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                if (!instance.waitFor(remaining, TimeUnit.MILLISECONDS)) { // If timeout is reached
+                    getLogger().warn("Failed to kill sub-process via soft-killing failed. Killing it by force now. Sub-process may not exit cleanly.");
+                    instance.destroy(true);
+                }
             }
+        }
 
+        for (final ProcessInstance instance : instances) {
+            instance.detachProcess();
         }
+        GatewayStatistics.unregister(getIdentifier());
 
     }
 }
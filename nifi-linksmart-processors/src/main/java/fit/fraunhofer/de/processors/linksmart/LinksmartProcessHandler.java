@@ -3,22 +3,173 @@ package fit.fraunhofer.de.processors.linksmart;
 import com.zaxxer.nuprocess.NuAbstractProcessHandler;
 import com.zaxxer.nuprocess.NuProcess;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 class LinksmartProcessHandler extends NuAbstractProcessHandler {
 
     private NuProcess nuProcess;
-    private BlockingQueue<String> stdoutQueue;
+    private BlockingQueue<Message> stdoutQueue;
     private BlockingQueue<String> stderrQueue;
-    private ByteArrayOutputStream currBytes = new ByteArrayOutputStream(4096);
+    private Framer stdoutFramer;
+    private Consumer<Message> stdoutSink;
+    private OverflowPolicy overflowPolicy;
+    private MessageSpill spill;
+    private volatile boolean stopped = false;
+    private boolean framingFailed = false;
+    private volatile MessageStream currentStream; // Stream of the message whose parts are being read right now
+    private volatile String framingError;
+    private volatile Integer exitCode;
+    private volatile Runnable exitListener;
+    private volatile BlockingQueue<ByteBuffer> stdinQueue; // Chunks to write to stdin, null if nothing is written
+    private ByteBuffer stdinChunk; // The chunk being written right now
+    private volatile boolean active = true; // Messages of a standby are discarded until it is activated
+    private boolean discarding = false; // The parts of a streamed message that started while on standby are discarded
+    private final Deque<Held> held = new ArrayDeque<>(); // Messages and parts waiting for room, in the order they were read
+    private volatile boolean paused = false; // Reading is paused until everything held has been handed off
+    private boolean overflowing = false; // NuProcess cannot hold off reading any longer, so what does not fit is dropped
 
-    public LinksmartProcessHandler(BlockingQueue<String> stdoutQueue, BlockingQueue<String> stderrQueue) {
+    private int framedCount; // Messages handed off by the framer during the current read
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong readBytes = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong pausedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong stderrDroppedCount = new AtomicLong();
+
+    public LinksmartProcessHandler(BlockingQueue<Message> stdoutQueue, BlockingQueue<String> stderrQueue) {
+        this(stdoutQueue, stderrQueue, new MessagePool(1024));
+    }
+
+    public LinksmartProcessHandler(BlockingQueue<Message> stdoutQueue, BlockingQueue<String> stderrQueue, MessagePool pool) {
+        this(stdoutQueue, stderrQueue, pool, OverflowPolicy.DROP_NEWEST, null);
+    }
+
+    public LinksmartProcessHandler(BlockingQueue<Message> stdoutQueue, BlockingQueue<String> stderrQueue, MessagePool pool,
+                                   OverflowPolicy overflowPolicy, MessageSpill spill) {
+        this(stdoutQueue, stderrQueue, pool, new LineFramer(pool), overflowPolicy, spill);
+    }
+
+    public LinksmartProcessHandler(BlockingQueue<Message> stdoutQueue, BlockingQueue<String> stderrQueue, MessagePool pool,
+                                   Framer stdoutFramer, OverflowPolicy overflowPolicy, MessageSpill spill) {
+        if (overflowPolicy == OverflowPolicy.SPILL && spill == null) {
+            throw new IllegalArgumentException("A spill is required for the " + overflowPolicy + " overflow policy");
+        }
         this.stdoutQueue = stdoutQueue;
         this.stderrQueue = stderrQueue;
+        this.stdoutFramer = stdoutFramer;
+        this.stdoutSink = this::accept; // Created once, so framing does not allocate a lambda per callback
+        this.overflowPolicy = overflowPolicy;
+        this.spill = spill;
+    }
+
+    /**
+     * Drops the messages that are held back because the queue is full, as well as those arriving afterwards which do not fit.
+     */
+    public void stop() {
+        stopped = true;
+        resume();
+    }
+
+    /**
+     * Lets the pump thread hand off what it holds back, once the processor has made room in the queue or the stream of
+     * a message, without waiting for the sub-process to write more. May be called by any thread at any time.
+     */
+    public void resume() {
+        final NuProcess process = nuProcess;
+        if (paused && process != null) {
+            // NuProcess calls back on the pump thread, which is the only one touching what is held
+            process.wantWrite();
+        }
+    }
+
+    /**
+     * An inactive handler keeps framing stdout, but discards the messages. Once it is activated, the first message
+     * handed off is the first one that starts afterwards.
+     */
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * @param stdinQueue chunks to be written to stdin. After adding to the queue, {@link NuProcess#wantWrite()} has to be called.
+     */
+    public void setStdinQueue(BlockingQueue<ByteBuffer> stdinQueue) {
+        this.stdinQueue = stdinQueue;
+    }
+
+    /**
+     * @param exitListener called by the NuProcess thread once the sub-process has exited
+     */
+    public void setExitListener(Runnable exitListener) {
+        this.exitListener = exitListener;
+    }
+
+    /**
+     * Takes over the counts of a handler whose sub-process has exited, so that they are not lost when it is replaced.
+     */
+    public void absorbCounts(LinksmartProcessHandler other) {
+        readCount.addAndGet(other.takeReadCount());
+        readBytes.addAndGet(other.takeReadBytes());
+        droppedCount.addAndGet(other.takeDroppedCount());
+        pausedCount.addAndGet(other.takePausedCount());
+        spilledCount.addAndGet(other.takeSpilledCount());
+        stderrDroppedCount.addAndGet(other.takeStderrDroppedCount());
+    }
+
+    public long takeReadCount() {
+        return readCount.getAndSet(0);
+    }
+
+    public long takeReadBytes() {
+        return readBytes.getAndSet(0);
+    }
+
+    public long takeDroppedCount() {
+        return droppedCount.getAndSet(0);
+    }
+
+    public long takePausedCount() {
+        return pausedCount.getAndSet(0);
+    }
+
+    public long takeSpilledCount() {
+        return spilledCount.getAndSet(0);
+    }
+
+    public long takeStderrDroppedCount() {
+        return stderrDroppedCount.getAndSet(0);
+    }
+
+    /**
+     * @return the reason why framing of stdout failed, once, or null
+     */
+    public String takeFramingError() {
+        final String error = framingError;
+        framingError = null;
+        return error;
+    }
+
+    /**
+     * @return the exit code of the sub-process, or null while it is running
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return true while the parts of a streamed message are being read, in which case the processor has to
+     * pick up its head from the queue, otherwise reading stalls as soon as the stream is full
+     */
+    public boolean isStreaming() {
+        return currentStream != null;
     }
 
     @Override
@@ -26,57 +177,289 @@ class LinksmartProcessHandler extends NuAbstractProcessHandler {
         this.nuProcess = nuProcess;
     }
 
+    // While anything is held back, the bytes read are left in the buffer, which NuProcess passes in again together with
+    // the next bytes read. It cannot stop reading the pipe, though, and fails once the buffer is full, so from then on
+    // what does not fit is dropped. Waiting for room instead would hold up the sub-processes sharing the pump thread.
     @Override
     public void onStdout(ByteBuffer buffer, boolean closed) {
-        System.out.println("onStdout method called with closed: " + closed);
+        if (framingFailed) {
+            // There is no way to find the next frame boundary again, so the rest of the stream is discarded
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (!flushHeld()) {
+            if (!closed && buffer.limit() < buffer.capacity()) {
+                return;
+            }
+            overflowing = true;
+        }
+
+        final int remaining = buffer.remaining();
+        framedCount = 0;
+        try {
+            stdoutFramer.frame(buffer, stdoutSink);
+            // One update per read rather than per message
+            readCount.addAndGet(framedCount);
+            readBytes.addAndGet(remaining - buffer.remaining());
+        } catch (IllegalStateException e) {
+            framingFailed = true;
+            abortStream();
+            buffer.position(buffer.limit());
+            framingError = "Invalid framing of stdout, discarding all further output: " + e.getMessage();
+        } finally {
+            overflowing = false;
+        }
+
+        if (closed) {
+            // Nothing is read any more, so nothing would hand off what is held
+            stopped = true;
+            flushHeld();
+            abortStream();
+        } else if (paused) {
+            // The processor may have made room before the pause was visible to it
+            flushHeld();
+        }
+    }
+
+    private void accept(Message message) {
+        if (discarding || !active) {
+            discarding = message.isContinued();
+            message.release();
+            return;
+        }
+
+        final MessageStream stream = currentStream;
+        if (stream != null) {
+            if (!message.isContinued()) {
+                currentStream = null;
+            }
+            enqueuePart(stream, message);
+        } else if (message.isContinued()) {
+            framedCount++;
+            currentStream = new MessageStream(MessageStream.DEFAULT_CAPACITY, this::resume);
+            message.setStream(currentStream);
+            enqueue(message);
+        } else {
+            framedCount++;
+            enqueue(message);
+        }
+    }
 
-        if (!closed) {
-            int total = buffer.remaining();
+    private void enqueue(Message message) {
+        if (!held.isEmpty() || !handOff(message, null)) {
+            hold(message, null);
+        }
+    }
 
-            currBytes.reset();
-            // Mark the beginning of buffer to come back, in case no delimiter is found
-            buffer.mark();
-            for (int i = 0; i < total; i++) {
+    private void enqueuePart(MessageStream stream, Message part) {
+        if (!held.isEmpty() || !handOff(part, stream)) {
+            hold(part, stream);
+        }
+    }
+
+    /**
+     * @return false if the message has to wait for room in the queue, or in the stream it is a part of
+     */
+    private boolean handOff(Message message, MessageStream stream) {
+        if (stream != null) {
+            if (stream.isAborted()) {
+                message.release();
+                return true;
+            }
+            return stream.offer(message);
+        }
+        if (message.getStream() != null) {
+            // Neither the head nor the parts of a streamed message are dropped or spilled because of the overflow policy,
+            // as that would corrupt the message. They are held back until there is room instead.
+            return (spill == null || spill.isEmpty()) && stdoutQueue.offer(message);
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                return stdoutQueue.offer(message);
+            case DROP_OLDEST:
+                while (!stdoutQueue.offer(message)) {
+                    Message oldest = stdoutQueue.peek();
+                    if (oldest != null && oldest.getStream() != null) {
+                        // The head of a streamed message is not evicted, as its parts are already on their way
+                        drop(message);
+                        break;
+                    }
+                    if (oldest != null && stdoutQueue.remove(oldest)) {
+                        oldest.release();
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                return true;
+            case SPILL:
+                enqueueOrSpill(message);
+                return true;
+            default:
+                if (!stdoutQueue.offer(message)) {
+                    drop(message);
+                }
+                return true;
+        }
+    }
 
-                byte currByte = buffer.get();
+    // Once anything is spilled, later messages go to the spill as well until the processor has read it back,
+    // so that messages are still emitted in the order they were read
+    private void enqueueOrSpill(Message message) {
+        if (spill.isEmpty() && stdoutQueue.offer(message)) {
+            return;
+        }
 
-                // TODO: consider whether to write newline char to message
-                currBytes.write(currByte);
-                // Separate bytes into messages
-                if (currByte == '\n') {
-                    // TODO: handle stdoutQueue full situation
-                    String msg = new String(currBytes.toByteArray(), StandardCharsets.UTF_8);
-                    stdoutQueue.offer(msg.replace("\r", "").replace("\n", ""));
+        try {
+            // A full spill cannot make the pump thread wait, as it reads the other sub-processes as well
+            if (spill.append(message)) {
+                spilledCount.incrementAndGet();
+                message.release();
+            } else {
+                drop(message);
+            }
+        } catch (IOException e) {
+            drop(message);
+        }
+    }
 
-                    System.out.println("New stdout message put into queue: " + msg);
+    // Once anything is held, everything read after it is held as well, so that the order is kept
+    private void hold(Message message, MessageStream stream) {
+        if (overflowing || stopped) {
+            if (stream != null) {
+                stream.abort();
+                message.release();
+            } else {
+                drop(message);
+            }
+            return;
+        }
+        if (held.isEmpty()) {
+            pausedCount.incrementAndGet();
+            paused = true;
+        }
+        held.addLast(new Held(message, stream));
+    }
 
-                    // Mark the break point, so that next read will always start here
-                    buffer.mark();
-                    currBytes.reset();
+    /**
+     * @return true if nothing is held any more
+     */
+    private boolean flushHeld() {
+        Held next;
+        while ((next = held.peekFirst()) != null) {
+            if (!handOff(next.message, next.stream)) {
+                if (!stopped) {
+                    return false;
+                }
+                if (next.stream != null) {
+                    next.stream.abort();
+                    next.message.release();
+                } else {
+                    drop(next.message);
                 }
             }
+            held.removeFirst();
+        }
+        paused = false;
+        return true;
+    }
+
+    private void abortStream() {
+        final MessageStream stream = currentStream;
+        if (stream != null) {
+            currentStream = null;
+            stream.abort();
+        }
+    }
 
-            // Reset to the last break point
-            buffer.reset();
+    private static final class Held {
+        private final Message message;
+        private final MessageStream stream; // The stream the message is a part of, or null if it goes into the queue
 
+        Held(Message message, MessageStream stream) {
+            this.message = message;
+            this.stream = stream;
         }
     }
 
+    private void drop(Message message) {
+        if (message.getStream() != null) {
+            message.getStream().abort();
+        }
+        message.release();
+        droppedCount.incrementAndGet();
+    }
+
     @Override
-    public void onStderr(ByteBuffer buffer, boolean closed) {
-        System.out.println("onStderr method called with closed: " + closed);
+    public boolean onStdinReady(ByteBuffer buffer) {
+        if (paused) {
+            flushHeld();
+        }
+
+        final BlockingQueue<ByteBuffer> queue = stdinQueue;
+        if (queue == null) {
+            // Called to resume handing off, so there is nothing to write
+            buffer.flip();
+            return false;
+        }
+
+        while (buffer.hasRemaining()) {
+            if (stdinChunk == null || !stdinChunk.hasRemaining()) {
+                stdinChunk = queue.poll();
+                if (stdinChunk == null) {
+                    break;
+                }
+            }
+            final int length = Math.min(buffer.remaining(), stdinChunk.remaining());
+            final ByteBuffer slice = stdinChunk.duplicate();
+            slice.limit(slice.position() + length);
+            buffer.put(slice);
+            stdinChunk.position(stdinChunk.position() + length);
+        }
+        buffer.flip();
 
-        if (!closed) {
-            byte[] currBytes = new byte[buffer.remaining()];
-            buffer.get(currBytes);
-            String msg = new String(currBytes);
-            stderrQueue.offer(msg);
+        // If a chunk is added after this, wantWrite() is called again
+        return (stdinChunk != null && stdinChunk.hasRemaining()) || !queue.isEmpty();
+    }
 
-            System.out.println("New stderr message put into queue: " + msg);
+    // stderr is split into lines as well, but as it is expected to be low volume, every line simply becomes a String
+    @Override
+    public void onStderr(ByteBuffer buffer, boolean closed) {
+        final int end = buffer.limit();
+        int lineStart = buffer.position();
+        for (int i = lineStart; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                offerStderr(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
 
-            // For this example, we're done, so closing STDIN will cause the "cat" process to exit
-            nuProcess.closeStdin(true);
+        // A partial line is left in the buffer, unless the buffer is full or nothing more will be read
+        if (lineStart < end && (closed || end - lineStart == buffer.capacity())) {
+            offerStderr(buffer, lineStart, end);
+            lineStart = end;
         }
+        buffer.position(lineStart);
+    }
 
+    private void offerStderr(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        final byte[] line = new byte[end - start];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = buffer.get(start + i);
+        }
+        if (!stderrQueue.offer(new String(line, StandardCharsets.UTF_8))) {
+            stderrDroppedCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onExit(int statusCode) {
+        exitCode = statusCode;
+        final Runnable listener = exitListener;
+        if (listener != null) {
+            listener.run();
+        }
     }
 }
@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+@Tags({"linksmart", "service catalog", "register", "bulk"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Registers, updates or deletes a service entry in the Linksmart Service Catalog for every incoming FlowFile, whose " +
+        "content is the service entry as JSON, or a JSON array of service entries. Unlike the LinksmartServiceRegister, entries are not " +
+        "renewed, so they expire after the TTL in their body unless they are registered again. Requests for many FlowFiles are on their " +
+        "way at the same time, sharing the connections of the Service Catalog controller service.")
+@WritesAttributes({
+        @WritesAttribute(attribute = LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, description = "The ID of the service entry, as assigned " +
+                "by the Service Catalog if the entry had none"),
+        @WritesAttribute(attribute = LinksmartServiceBulkRegister.ERROR_ATTRIBUTE, description = "Why the request failed, for FlowFiles " +
+                "routed to failure or retry")})
+@SeeAlso({LinksmartServiceRegister.class, LinksmartServiceLookup.class})
+public class LinksmartServiceBulkRegister extends AbstractProcessor {
+
+    public static final String SERVICE_ID_ATTRIBUTE = LinksmartServiceLookup.SERVICE_ID_ATTRIBUTE;
+    public static final String ERROR_ATTRIBUTE = "linksmart.error";
+
+    static final String OPERATION_REGISTER = "register";
+    static final String OPERATION_DELETE = "delete";
+
+    public static final PropertyDescriptor SERVICE_CATALOG = new PropertyDescriptor.Builder()
+            .name("SERVICE_CATALOG")
+            .displayName("Service Catalog")
+            .description("The controller service which connects to the Linksmart Service Catalog.")
+            .required(true)
+            .identifiesControllerService(LinksmartServiceCatalogService.class)
+            .build();
+
+    public static final PropertyDescriptor OPERATION = new PropertyDescriptor.Builder()
+            .name("OPERATION")
+            .displayName("Operation")
+            .description("What is done with the service entries of a FlowFile: '" + OPERATION_REGISTER + "' creates them, or replaces " +
+                    "the entries with the same ID, and '" + OPERATION_DELETE + "' deletes them. FlowFiles with any other operation are " +
+                    "routed to failure.")
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue(OPERATION_REGISTER)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor SERVICE_ID = new PropertyDescriptor.Builder()
+            .name("SERVICE_ID")
+            .displayName("Service ID")
+            .description("The ID of the service entry of a FlowFile holding a single entry. If not set, the 'id' field of the entry is " +
+                    "used, as it always is for the entries of a JSON array. A registered entry without an ID gets one assigned by the " +
+                    "Service Catalog.")
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONCURRENT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("MAX_CONCURRENT_REQUESTS")
+            .displayName("Maximum Concurrent Requests")
+            .description("The number of requests of this processor which are on their way at most. Another request is sent as soon as " +
+                    "one has been answered. The requests also wait for a free connection of the Service Catalog controller service.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("BATCH_SIZE")
+            .displayName("Batch Size")
+            .description("The maximum number of FlowFiles processed in a single session.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .required(true)
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles whose service entry has been registered or deleted will be sent out this relationship. Deleting an " +
+                    "entry which the Service Catalog does not know counts as success as well.")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles which are no valid service entry, or which the Service Catalog has rejected, will be sent out this relationship.")
+            .build();
+
+    public static final Relationship REL_RETRY = new Relationship.Builder()
+            .name("retry")
+            .description("FlowFiles for which the Service Catalog could not be reached, or has answered with a server error, will be " +
+                    "sent out this relationship, penalized.")
+            .build();
+
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("FlowFiles holding a JSON array will be sent out this relationship, once a FlowFile has been created for " +
+                    "every entry of the array.")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+    private Set<Relationship> relationships;
+
+    private LinksmartServiceCatalogService catalog;
+    private final CircuitStateReporter circuitStateReporter = new CircuitStateReporter();
+    private int maxConcurrentRequests;
+    private int batchSize;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(SERVICE_CATALOG);
+        descriptors.add(OPERATION);
+        descriptors.add(SERVICE_ID);
+        descriptors.add(MAX_CONCURRENT_REQUESTS);
+        descriptors.add(BATCH_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        relationships.add(REL_RETRY);
+        relationships.add(REL_ORIGINAL);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        catalog = context.getProperty(SERVICE_CATALOG).asControllerService(LinksmartServiceCatalogService.class);
+        maxConcurrentRequests = context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger();
+        batchSize = context.getProperty(BATCH_SIZE).asInteger();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        circuitStateReporter.report(catalog, session);
+
+        final List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty()) {
+            context.yield();
+            return;
+        }
+
+        // Requests are sent while the FlowFiles are still being read, and a new one as soon as another has been answered.
+        // The session is only used by this thread, so the results are routed once all requests have been sent.
+        // An interrupt stops sending, but the requests already sent are still awaited and routed: rolling back would send
+        // them again, and an entry without an ID would then be created twice.
+        final Semaphore permits = new Semaphore(maxConcurrentRequests);
+        final List<FlowFile> entries = new ArrayList<>();
+        final List<CompletableFuture<String>> requests = new ArrayList<>(); // Null for an entry which was not sent
+        boolean interrupted = false;
+        for (final FlowFile flowFile : flowFiles) {
+            if (interrupted) {
+                session.transfer(flowFile); // Back to the incoming queue, as nothing of it was sent
+                continue;
+            }
+            final String operation = context.getProperty(OPERATION).evaluateAttributeExpressions(flowFile).getValue();
+            final JsonElement content;
+            try {
+                content = readJson(session, flowFile);
+            } catch (JsonParseException e) {
+                fail(session, flowFile, "The content is no valid JSON: " + e.getMessage());
+                continue;
+            }
+
+            if (content.isJsonArray()) {
+                for (final JsonElement element : content.getAsJsonArray()) {
+                    FlowFile entry = session.create(flowFile);
+                    final String json = element.toString();
+                    entry = session.write(entry, out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+                    entries.add(entry);
+                    CompletableFuture<String> request = null;
+                    if (!interrupted) {
+                        try {
+                            request = send(permits, operation, null, element);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    requests.add(request);
+                }
+                session.transfer(flowFile, REL_ORIGINAL);
+            } else {
+                try {
+                    requests.add(send(permits, operation, context.getProperty(SERVICE_ID).evaluateAttributeExpressions(flowFile).getValue(), content));
+                    entries.add(flowFile);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    session.transfer(flowFile);
+                }
+            }
+        }
+
+        int succeeded = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            final FlowFile entry = entries.get(i);
+            final CompletableFuture<String> request = requests.get(i);
+            if (request == null) {
+                retry(session, entry, "Interrupted before the service entry was sent");
+                continue;
+            }
+            final String id;
+            try {
+                id = awaitResponse(request);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                // Only an unreachable Service Catalog is worth a retry; a rejected entry or an invalid ID fails the same way every time
+                if (!StandardLinksmartServiceCatalogService.isUnavailable(cause)) {
+                    fail(session, entry, cause.getMessage());
+                } else {
+                    // The controller service reports a suspension of requests once, rather than for every FlowFile
+                    if (!(cause instanceof CircuitOpenException)) {
+                        getLogger().warn("Failed to reach the Service Catalog for {} due to {}; routing to retry.", new Object[]{entry, cause.getMessage()});
+                    }
+                    retry(session, entry, cause.getMessage());
+                }
+                continue;
+            }
+            session.transfer(id == null ? entry : session.putAttribute(entry, SERVICE_ID_ATTRIBUTE, id), REL_SUCCESS);
+            succeeded++;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        session.adjustCounter("Service Entries Processed", succeeded, false);
+    }
+
+    // Waits for a permit, which is handed back once the request has been answered
+    private CompletableFuture<String> send(final Semaphore permits, final String operation, final String serviceId, final JsonElement entry)
+            throws InterruptedException {
+        if (!entry.isJsonObject()) {
+            return failed("The service entry is no JSON object");
+        }
+        final JsonObject body = entry.getAsJsonObject();
+        final String id;
+        if (serviceId != null && !serviceId.isEmpty()) {
+            body.addProperty("id", serviceId);
+            id = serviceId;
+        } else {
+            final JsonElement field = body.get("id");
+            id = field != null && field.isJsonPrimitive() ? field.getAsString() : null;
+        }
+
+        if (OPERATION_REGISTER.equals(operation)) {
+            final String json = body.toString();
+            return withPermit(permits, () -> catalog.putEntry(id, json));
+        }
+        if (OPERATION_DELETE.equals(operation)) {
+            if (id == null || id.isEmpty()) {
+                return failed("The service entry to delete has no ID");
+            }
+            return withPermit(permits, () -> catalog.deleteEntry(id).thenApply(ignored -> id));
+        }
+        return failed("Unknown operation '" + operation + "'");
+    }
+
+    private static CompletableFuture<String> withPermit(final Semaphore permits, final Supplier<CompletableFuture<String>> request)
+            throws InterruptedException {
+        permits.acquire();
+        CompletableFuture<String> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        return response.whenComplete((ignored, failure) -> permits.release());
+    }
+
+    private static CompletableFuture<String> failed(final String reason) {
+        final CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ProcessException(reason));
+        return failed;
+    }
+
+    private static JsonElement readJson(final ProcessSession session, final FlowFile flowFile) {
+        final AtomicReference<JsonElement> content = new AtomicReference<>();
+        session.read(flowFile, in -> content.set(new JsonParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8))));
+        return content.get();
+    }
+
+    // Waits for the response also when interrupted, which is bounded by the timeouts of the Service Catalog, and keeps
+    // the interrupt for the caller
+    private static String awaitResponse(final CompletableFuture<String> request) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return request.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void retry(final ProcessSession session, final FlowFile flowFile, final String reason) {
+        session.transfer(session.penalize(session.putAttribute(flowFile, ERROR_ATTRIBUTE, String.valueOf(reason))), REL_RETRY);
+    }
+
+    private void fail(final ProcessSession session, final FlowFile flowFile, final String reason) {
+        getLogger().error("Failed to process the service entry of {}: {}", new Object[]{flowFile, reason});
+        session.transfer(session.putAttribute(flowFile, ERROR_ATTRIBUTE, String.valueOf(reason)), REL_FAILURE);
+    }
+
+}
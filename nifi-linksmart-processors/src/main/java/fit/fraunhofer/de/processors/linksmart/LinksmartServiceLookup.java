@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.google.gson.JsonElement;
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+@Tags({"linksmart", "service catalog", "lookup", "enrich"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Looks up service entries in the Linksmart Service Catalog, by ID or by a filter, and writes the name, the APIs and " +
+        "the meta data of the first matching entry into attributes of the FlowFile. Results are cached, including the absence of an entry, " +
+        "so that most FlowFiles do not cause a request to the Service Catalog.")
+@WritesAttributes({
+        @WritesAttribute(attribute = LinksmartServiceLookup.SERVICE_ID_ATTRIBUTE, description = "The ID of the service entry"),
+        @WritesAttribute(attribute = LinksmartServiceLookup.SERVICE_NAME_ATTRIBUTE, description = "The name of the service entry"),
+        @WritesAttribute(attribute = LinksmartServiceLookup.SERVICE_COUNT_ATTRIBUTE, description = "The number of matching service entries"),
+        @WritesAttribute(attribute = LinksmartServiceLookup.SERVICE_APIS_PREFIX + "*", description = "Every API of the service entry"),
+        @WritesAttribute(attribute = LinksmartServiceLookup.SERVICE_META_PREFIX + "*", description = "Every meta data field of the service entry")})
+@SeeAlso(LinksmartServiceRegister.class)
+public class LinksmartServiceLookup extends AbstractProcessor {
+
+    public static final String SERVICE_ID_ATTRIBUTE = "linksmart.service.id";
+    public static final String SERVICE_NAME_ATTRIBUTE = "linksmart.service.name";
+    public static final String SERVICE_COUNT_ATTRIBUTE = "linksmart.service.count";
+    public static final String SERVICE_APIS_PREFIX = "linksmart.service.apis.";
+    public static final String SERVICE_META_PREFIX = "linksmart.service.meta.";
+
+    public static final PropertyDescriptor SERVICE_CATALOG = new PropertyDescriptor.Builder()
+            .name("SERVICE_CATALOG")
+            .displayName("Service Catalog")
+            .description("The controller service which connects to the Linksmart Service Catalog.")
+            .required(true)
+            .identifiesControllerService(LinksmartServiceCatalogService.class)
+            .build();
+
+    public static final PropertyDescriptor SERVICE_ID = new PropertyDescriptor.Builder()
+            .name("SERVICE_ID")
+            .displayName("Service ID")
+            .description("The ID of the service entry to look up. Either this or a <Filter Path> has to be set.")
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FILTER_PATH = new PropertyDescriptor.Builder()
+            .name("FILTER_PATH")
+            .displayName("Filter Path")
+            .description("The field of the service entries to filter by, with nested fields separated by dots, e.g. 'name' or 'meta.ls_codename'.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FILTER_OPERATOR = new PropertyDescriptor.Builder()
+            .name("FILTER_OPERATOR")
+            .displayName("Filter Operator")
+            .description("How the field at the <Filter Path> is compared with the <Filter Value>.")
+            .allowableValues("equals", "prefix", "suffix", "contains")
+            .defaultValue("equals")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor FILTER_VALUE = new PropertyDescriptor.Builder()
+            .name("FILTER_VALUE")
+            .displayName("Filter Value")
+            .description("The value the field at the <Filter Path> is compared with.")
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("CACHE_SIZE")
+            .displayName("Cache Size")
+            .description("The number of lookup results kept at most. Once exceeded, the least recently used result is evicted.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("CACHE_EXPIRATION")
+            .displayName("Cache Expiration")
+            .description("How long a service entry is kept at most. An entry is kept no longer than its TTL, if that is shorter.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor NOT_FOUND_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("NOT_FOUND_CACHE_EXPIRATION")
+            .displayName("Not Found Cache Expiration")
+            .description("How long it is kept that no service entry was found.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 secs")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("BATCH_SIZE")
+            .displayName("Batch Size")
+            .description("The maximum number of FlowFiles looked up in a single session. Entries which are not cached are requested concurrently.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .required(true)
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles for which a service entry was found will be sent out this relationship.")
+            .build();
+
+    public static final Relationship REL_NOT_FOUND = new Relationship.Builder()
+            .name("not found")
+            .description("FlowFiles for which no service entry was found will be sent out this relationship.")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles for which the Service Catalog could not be asked will be sent out this relationship, unchanged.")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+    private Set<Relationship> relationships;
+
+    private LinksmartServiceCatalogService catalog;
+    private final CircuitStateReporter circuitStateReporter = new CircuitStateReporter();
+    private String filterPath;
+    private String filterOperator;
+    private int batchSize;
+    private ExpiringLruCache<String, List<ServiceRegister.ServiceEntry>> cache;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(SERVICE_CATALOG);
+        descriptors.add(SERVICE_ID);
+        descriptors.add(FILTER_PATH);
+        descriptors.add(FILTER_OPERATOR);
+        descriptors.add(FILTER_VALUE);
+        descriptors.add(CACHE_SIZE);
+        descriptors.add(CACHE_EXPIRATION);
+        descriptors.add(NOT_FOUND_CACHE_EXPIRATION);
+        descriptors.add(BATCH_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_NOT_FOUND);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+
+        final boolean byId = validationContext.getProperty(SERVICE_ID).isSet();
+        final boolean byFilter = validationContext.getProperty(FILTER_PATH).isSet();
+        if (byId == byFilter) {
+            results.add(new ValidationResult.Builder().subject(SERVICE_ID.getDisplayName()).valid(false)
+                    .explanation("either a Service ID or a Filter Path has to be set, but not both").build());
+        }
+        if (byFilter && !validationContext.getProperty(FILTER_VALUE).isSet()) {
+            results.add(new ValidationResult.Builder().subject(FILTER_VALUE.getDisplayName()).valid(false)
+                    .explanation("a Filter Path requires a Filter Value").build());
+        }
+
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        catalog = context.getProperty(SERVICE_CATALOG).asControllerService(LinksmartServiceCatalogService.class);
+        filterPath = context.getProperty(FILTER_PATH).getValue();
+        filterOperator = context.getProperty(FILTER_OPERATOR).getValue();
+        batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        cache = new ExpiringLruCache<>(context.getProperty(CACHE_SIZE).asInteger(), expiryNanos(
+                context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.NANOSECONDS),
+                context.getProperty(NOT_FOUND_CACHE_EXPIRATION).asTimePeriod(TimeUnit.NANOSECONDS)));
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        circuitStateReporter.report(catalog, session);
+
+        final List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty()) {
+            context.yield();
+            return;
+        }
+
+        // All lookups are started before waiting for any, so that the entries which are not cached are requested concurrently
+        final List<CompletableFuture<List<ServiceRegister.ServiceEntry>>> lookups = new ArrayList<>(flowFiles.size());
+        for (FlowFile flowFile : flowFiles) {
+            lookups.add(lookup(context, flowFile));
+        }
+
+        for (int i = 0; i < flowFiles.size(); i++) {
+            final FlowFile flowFile = flowFiles.get(i);
+            final List<ServiceRegister.ServiceEntry> entries;
+            try {
+                entries = lookups.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                session.rollback();
+                return;
+            } catch (ExecutionException e) {
+                // The controller service reports a suspension of requests once, rather than for every FlowFile
+                if (!(e.getCause() instanceof CircuitOpenException)) {
+                    getLogger().error("Failed to look up the service entry for {} due to {}", new Object[]{flowFile, e.getCause().getMessage()}, e.getCause());
+                }
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+                continue;
+            }
+
+            if (entries.isEmpty()) {
+                session.transfer(flowFile, REL_NOT_FOUND);
+            } else {
+                session.transfer(session.putAllAttributes(flowFile, attributes(entries)), REL_SUCCESS);
+            }
+        }
+
+        session.adjustCounter("Cache Hits", cache.takeHitCount(), false);
+        session.adjustCounter("Service Catalog Lookups", cache.takeLoadCount(), false);
+    }
+
+    private CompletableFuture<List<ServiceRegister.ServiceEntry>> lookup(final ProcessContext context, final FlowFile flowFile) {
+        if (filterPath == null) {
+            final String id = context.getProperty(SERVICE_ID).evaluateAttributeExpressions(flowFile).getValue();
+            if (id == null || id.isEmpty()) {
+                final CompletableFuture<List<ServiceRegister.ServiceEntry>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new ProcessException("the Service ID is empty"));
+                return failed;
+            }
+            return cache.get("id/" + id, key -> catalog.getEntry(id).thenApply(json -> json == null
+                    ? Collections.<ServiceRegister.ServiceEntry>emptyList() : Collections.singletonList(ServiceRegister.parseServiceEntry(json))));
+        }
+
+        final String value = context.getProperty(FILTER_VALUE).evaluateAttributeExpressions(flowFile).getValue();
+        return cache.get("filter/" + filterPath + "/" + filterOperator + "/" + value,
+                key -> catalog.findEntries(filterPath, filterOperator, value).thenApply(ServiceRegister::parseServiceEntries));
+    }
+
+    // An entry is kept no longer than its own TTL, after which the Service Catalog may have dropped it
+    static ToLongFunction<List<ServiceRegister.ServiceEntry>> expiryNanos(long maxNanos, long notFoundNanos) {
+        return entries -> {
+            if (entries.isEmpty()) {
+                return notFoundNanos;
+            }
+            long expiry = maxNanos;
+            for (ServiceRegister.ServiceEntry entry : entries) {
+                if (entry.getTtl() > 0) {
+                    expiry = Math.min(expiry, TimeUnit.SECONDS.toNanos(entry.getTtl()));
+                }
+            }
+            return expiry;
+        };
+    }
+
+    static Map<String, String> attributes(List<ServiceRegister.ServiceEntry> entries) {
+        final ServiceRegister.ServiceEntry entry = entries.get(0);
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(SERVICE_ID_ATTRIBUTE, entry.getId());
+        if (entry.getName() != null) {
+            attributes.put(SERVICE_NAME_ATTRIBUTE, entry.getName());
+        }
+        attributes.put(SERVICE_COUNT_ATTRIBUTE, String.valueOf(entries.size()));
+        putAll(attributes, SERVICE_APIS_PREFIX, entry.getApis());
+        putAll(attributes, SERVICE_META_PREFIX, entry.getMeta());
+        return attributes;
+    }
+
+    // Strings and numbers are written as they are, other values as JSON
+    private static void putAll(Map<String, String> attributes, String prefix, Map<String, JsonElement> values) {
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> value : values.entrySet()) {
+            if (value.getValue() != null && !value.getValue().isJsonNull()) {
+                attributes.put(prefix + value.getKey(),
+                        value.getValue().isJsonPrimitive() ? value.getValue().getAsString() : value.getValue().toString());
+            }
+        }
+    }
+
+}
@@ -17,17 +17,25 @@
 package fit.fraunhofer.de.processors.linksmart;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.zaxxer.nuprocess.NuProcess;
 import com.zaxxer.nuprocess.NuProcessBuilder;
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import fit.fraunhofer.de.services.linksmart.ServiceCatalogEntry;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
@@ -38,20 +46,25 @@ import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 
 @Tags({"linksmart"})
 @CapabilityDescription("This is a Nifi processor which register this Nifi instance to the Linksmart Service Catalog.")
 @ReadsAttributes({@ReadsAttribute(attribute = "", description = "")})
 @WritesAttributes({@WritesAttribute(attribute = "", description = "")})
+@Stateful(scopes = {Scope.LOCAL, Scope.CLUSTER}, description = "If no Service ID is set, the ID assigned by the Service Catalog is stored, " +
+        "so that the same service entry is updated after a restart instead of creating a new one.")
 public class LinksmartServiceRegister extends AbstractProcessor {
 
-    public static final PropertyDescriptor SC_URL = new PropertyDescriptor
-            .Builder().name("SC_URL")
-            .displayName("Service Catalog URL")
-            .description("The URL of the Linksmart Service Catalog.")
+    public static final PropertyDescriptor SERVICE_CATALOG = new PropertyDescriptor
+            .Builder().name("SERVICE_CATALOG")
+            .displayName("Service Catalog")
+            .description("The controller service which connects to the Linksmart Service Catalog, and keeps the service entry registered.")
             .required(true)
-            .addValidator(StandardValidators.URL_VALIDATOR)
+            .identifiesControllerService(LinksmartServiceCatalogService.class)
             .build();
 
     public static final PropertyDescriptor ID = new PropertyDescriptor
@@ -86,26 +99,65 @@ public class LinksmartServiceRegister extends AbstractProcessor {
             .description("The property name containing info about exposed APIs.")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();*/
+
+    static final AllowableValue STATE_SCOPE_LOCAL = new AllowableValue(Scope.LOCAL.name(), "Local",
+            "Every node keeps the ID of its own service entry.");
+    static final AllowableValue STATE_SCOPE_CLUSTER = new AllowableValue(Scope.CLUSTER.name(), "Cluster",
+            "All nodes share the ID of a single service entry. Only meant for a processor running on the primary node.");
+
+    public static final PropertyDescriptor STATE_SCOPE = new PropertyDescriptor.Builder()
+            .name("STATE_SCOPE")
+            .displayName("State Scope")
+            .description("Where the ID assigned by the Service Catalog is kept, if no <Service ID> is set. On the next start, the entry " +
+                    "with this ID is updated instead of creating a new one.")
+            .allowableValues(STATE_SCOPE_LOCAL, STATE_SCOPE_CLUSTER)
+            .defaultValue(STATE_SCOPE_LOCAL.getValue())
+            .required(true)
             .build();
 
     public static final PropertyDescriptor TTL = new PropertyDescriptor.Builder()
             .name("TTL")
             .displayName("Time To Live (in seconds)")
-            .description("The Time To Live (TTL) of this service entry in the Linksmart Service Catalog.")
+            .description("The Time To Live (TTL) of this service entry in the Linksmart Service Catalog. It is written into the 'ttl' " +
+                    "field of the <Service Entry Body>, and the entry is refreshed after about half of it has passed.")
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .defaultValue("120")
             .required(true)
-            .build();*/
+            .build();
 
     public static final PropertyDescriptor BODY = new PropertyDescriptor.Builder()
             .name("BODY")
             .displayName("Service Entry Body")
-            .description("The content to be sent to the Service Catalog")
+            .description("The content to be sent to the Service Catalog. Expression Language is evaluated at every refresh of the entry; " +
+                    "the full entry is only registered again when the result has changed, otherwise the entry is merely renewed.")
             .defaultValue("")
             .required(true)
+            .expressionLanguageSupported(true)
             .addValidator(new JsonValidator())
             .build();
 
+    public static final PropertyDescriptor PUBLISH_GATEWAY_STATISTICS = new PropertyDescriptor.Builder()
+            .name("PUBLISH_GATEWAY_STATISTICS")
+            .displayName("Publish Gateway Statistics")
+            .description("Whether the statistics of all LinksmartGateway processors in this NiFi instance are merged into the 'meta' field " +
+                    "of the service entry at every refresh: the number of gateways, messages read per second, messages in their queues, " +
+                    "share of messages dropped, and seconds since the latest sub-process start.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor STATISTICS_CHANGE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("STATISTICS_CHANGE_THRESHOLD")
+            .displayName("Statistics Change Threshold (in percent)")
+            .description("The published gateway statistics are only updated once one of them has changed by more than this, since " +
+                    "every update registers the full entry again. Otherwise the entry is merely renewed.")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .required(true)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Messages received successfully will be sent out this relationship.")
@@ -116,20 +168,35 @@ public class LinksmartServiceRegister extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
-    private ServiceRegister serviceRegister;
-    private String serviceUuid;
+    // Stopping waits this long at most for the entry to be deleted
+    private static final long DEREGISTER_TIMEOUT_MILLIS = 60000;
+
+    static final String ASSIGNED_ID_STATE_KEY = "service.id";
+
+    private LinksmartServiceCatalogService catalog;
+    private ServiceCatalogEntry entry;
+    private final CircuitStateReporter circuitStateReporter = new CircuitStateReporter();
+    private boolean idAssigned; // Whether the Service Catalog chooses the ID, which is then kept in the state
+    private Scope stateScope;
+    private volatile String storedId;
+    private int ttl;
+    private long nextBodyCheckNanos;
+    private GatewayStatisticsPublisher statisticsPublisher; // Null if no gateway statistics are published
 
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-        descriptors.add(SC_URL);
+        descriptors.add(SERVICE_CATALOG);
         descriptors.add(ID);
+        descriptors.add(STATE_SCOPE);
         /*descriptors.add(CONTENT_SOURCE);
         descriptors.add(DESCRIPTION);
-        descriptors.add(PROPERTY_NAME);
-        descriptors.add(TTL);*/
+        descriptors.add(PROPERTY_NAME);*/
+        descriptors.add(TTL);
         descriptors.add(BODY);
+        descriptors.add(PUBLISH_GATEWAY_STATISTICS);
+        descriptors.add(STATISTICS_CHANGE_THRESHOLD);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -150,38 +217,129 @@ public class LinksmartServiceRegister extends AbstractProcessor {
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) throws Exception {
-        String url = context.getProperty(SC_URL).getValue();
         String id = context.getProperty(ID).getValue();
-        String body = context.getProperty(BODY).getValue();
+        ttl = context.getProperty(TTL).asInteger();
+
+        idAssigned = id == null || id.isEmpty();
+        if (idAssigned) {
+            // The entry created before is updated, rather than leaving one more entry behind after every restart
+            stateScope = Scope.valueOf(context.getProperty(STATE_SCOPE).getValue());
+            storedId = context.getStateManager().getState(stateScope).get(ASSIGNED_ID_STATE_KEY);
+            id = storedId;
+        }
 
-        serviceRegister = new ServiceRegister(url, id, body);
-        serviceRegister.registerService();
+        statisticsPublisher = null;
+        if (context.getProperty(PUBLISH_GATEWAY_STATISTICS).asBoolean()) {
+            final long now = System.nanoTime();
+            statisticsPublisher = new GatewayStatisticsPublisher(context.getProperty(STATISTICS_CHANGE_THRESHOLD).asInteger() / 100.0,
+                    GatewayStatistics.snapshot(now), now);
+        }
+
+        // The service renews the entry along with all others registered through it
+        catalog = context.getProperty(SERVICE_CATALOG).asControllerService(LinksmartServiceCatalogService.class);
+        entry = catalog.register(id, entryBody(context), ttl);
+        nextBodyCheckNanos = System.nanoTime() + ServiceRegister.refreshIntervalNanos(ttl, ThreadLocalRandom.current().nextDouble());
 
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        if (serviceRegister != null) {
-            try {
-                serviceRegister.registerService();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        // The body is only evaluated as often as the entry is renewed, however often the processor is triggered
+        final long now = System.nanoTime();
+        if (entry != null) {
+            storeAssignedId(context);
+        }
+        if (entry != null && now - nextBodyCheckNanos >= 0) {
+            entry.updateBody(entryBody(context));
+            nextBodyCheckNanos = now + ServiceRegister.refreshIntervalNanos(ttl, ThreadLocalRandom.current().nextDouble());
         }
-        // TODO: update service
+
+        circuitStateReporter.report(catalog, session);
 
         FlowFile flowFile = session.get();
         if(flowFile != null) {
             session.transfer(flowFile, REL_SUCCESS);
+        } else {
+            context.yield();
         }
     }
 
     @OnStopped
-    public void onStopped(final ProcessContext context) throws Exception {
-        if (serviceRegister != null) {
-            serviceRegister.deregisterService();
-            serviceRegister = null; // Release memory
+    public void onStopped(final ProcessContext context) {
+        if (entry != null) {
+            storeAssignedId(context);
+            try {
+                // Stopping is not done on a timer-driven thread, so waiting for the Service Catalog here is fine
+                entry.deregister().get(DEREGISTER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                getLogger().warn("Failed to delete the service entry due to {}. It expires once its TTL has passed.",
+                        new Object[]{e.getCause() != null ? e.getCause().getMessage() : e.getMessage()});
+            } finally {
+                entry = null; // Release memory
+            }
+        }
+    }
+
+    // The ID is assigned once the first registration has completed
+    private void storeAssignedId(final ProcessContext context) {
+        final String id = entry.getId();
+        if (!idAssigned || id == null || id.equals(storedId)) {
+            return;
+        }
+        try {
+            context.getStateManager().setState(Collections.singletonMap(ASSIGNED_ID_STATE_KEY, id), stateScope);
+            storedId = id;
+        } catch (IOException e) {
+            getLogger().warn("Failed to store the assigned service ID {} due to {}; will try again.", new Object[]{id, e.getMessage()}, e);
+        }
+    }
+
+    private String entryBody(final ProcessContext context) {
+        final String body = withTtl(context.getProperty(BODY).evaluateAttributeExpressions().getValue(), ttl);
+        if (statisticsPublisher == null) {
+            return body;
+        }
+        final long now = System.nanoTime();
+        return withMeta(body, statisticsPublisher.sample(GatewayStatistics.snapshot(now), now));
+    }
+
+    // Writes the TTL into the service entry, unless the body is not a JSON object
+    static String withTtl(String body, int ttl) {
+        JsonElement entry;
+        try {
+            entry = new JsonParser().parse(body);
+        } catch (JsonParseException e) {
+            return body;
+        }
+        if (!entry.isJsonObject()) {
+            return body;
+        }
+        entry.getAsJsonObject().addProperty("ttl", ttl);
+        return entry.toString();
+    }
+
+    // Adds the values to the 'meta' field of the service entry, unless the body is not a JSON object
+    static String withMeta(String body, Map<String, Number> values) {
+        JsonElement entry;
+        try {
+            entry = new JsonParser().parse(body);
+        } catch (JsonParseException e) {
+            return body;
+        }
+        if (!entry.isJsonObject()) {
+            return body;
+        }
+        final JsonObject object = entry.getAsJsonObject();
+        if (!object.has("meta") || !object.get("meta").isJsonObject()) {
+            object.add("meta", new JsonObject());
+        }
+        final JsonObject meta = object.getAsJsonObject("meta");
+        for (final Map.Entry<String, Number> value : values.entrySet()) {
+            meta.addProperty(value.getKey(), value.getValue());
         }
+        return entry.toString();
     }
 
     // Validator for Json string
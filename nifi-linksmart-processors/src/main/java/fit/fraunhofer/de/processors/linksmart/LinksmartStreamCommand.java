@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.zaxxer.nuprocess.NuProcess;
+import com.zaxxer.nuprocess.NuProcessBuilder;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"linksmart", "command", "stdin", "stream"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Streams the content of incoming FlowFiles into the stdin of a single long-running sub-process and replaces it with the " +
+        "answer the sub-process writes to stdout. Both directions are split into messages according to the <Framing Strategy>, and the " +
+        "sub-process has to answer every message with exactly one message, in the same order. Up to <Maximum In-Flight FlowFiles> messages " +
+        "are written before their answers have arrived. Unlike ExecuteStreamCommand, the sub-process is not started again for every FlowFile.")
+@SeeAlso(LinksmartGateway.class)
+@TriggerSerially
+public class LinksmartStreamCommand extends AbstractProcessor {
+
+    public static final PropertyDescriptor COMMAND_LINE = new PropertyDescriptor.Builder()
+            .name("COMMAND_LINE")
+            .displayName("Command Line")
+            .description("The command line to be executed in a subprocess.")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FRAMING_STRATEGY = new PropertyDescriptor.Builder()
+            .name("FRAMING_STRATEGY")
+            .displayName("Framing Strategy")
+            .description("Specifies how the content of a FlowFile is framed when it is written to stdin, and how stdout is split into answers. " +
+                    "With 'Line', a single trailing line break of the content is left out, and FlowFiles whose content contains " +
+                    "any other line break are routed to failure, as the sub-process would take them for several messages.")
+            .allowableValues(LinksmartGateway.FRAMING_LINE, LinksmartGateway.FRAMING_INT32_LENGTH, LinksmartGateway.FRAMING_VARINT_LENGTH,
+                    LinksmartGateway.FRAMING_NETSTRING)
+            .defaultValue(LinksmartGateway.FRAMING_LINE.getValue())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("MAX_IN_FLIGHT")
+            .displayName("Maximum In-Flight FlowFiles")
+            .description("The maximum number of FlowFiles written to the sub-process whose answers have not arrived yet.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor RESPONSE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("RESPONSE_TIMEOUT")
+            .displayName("Response Timeout")
+            .description("How long to wait for the sub-process to read a FlowFile or to answer it. If this is exceeded, all FlowFiles in flight " +
+                    "are routed to failure and the sub-process is started again, as the answers can no longer be matched to the FlowFiles.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_ANSWER_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_ANSWER_SIZE")
+            .displayName("Maximum Answer Size")
+            .description("The largest answer a length-prefixed framing accepts. A larger length prefix is taken for invalid output " +
+                    "of the sub-process: all FlowFiles in flight are routed to failure and the sub-process is started again.")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(0, Integer.MAX_VALUE))
+            .defaultValue("10 MB")
+            .required(true)
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("FlowFiles whose content was replaced with the answer of the sub-process will be sent out this relationship.")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles which could not be exchanged with the sub-process will be sent out this relationship, unchanged.")
+            .build();
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int STDIN_QUEUE_SIZE = 16; // Chunks waiting to be written to stdin
+    // The window is refilled for at most this long per trigger, so that the session is committed regularly
+    private static final long REFILL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long POLL_MILLIS = 100;
+
+    private List<PropertyDescriptor> descriptors;
+    private Set<Relationship> relationships;
+
+    private String[] cmdArray;
+    private FramingStrategy framingStrategy;
+    private int maxInFlight;
+    private long responseTimeoutNanos;
+    private int maxAnswerSize;
+    private MessagePool messagePool;
+    private BlockingQueue<Message> stdoutQueue;
+    private BlockingQueue<String> stderrQueue;
+    private BlockingQueue<ByteBuffer> stdinQueue;
+    private LinksmartProcessHandler handler;
+    private NuProcess process;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(COMMAND_LINE);
+        descriptors.add(FRAMING_STRATEGY);
+        descriptors.add(MAX_IN_FLIGHT);
+        descriptors.add(RESPONSE_TIMEOUT);
+        descriptors.add(MAX_ANSWER_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        cmdArray = context.getProperty(COMMAND_LINE).getValue().trim().split("\\s+");
+        framingStrategy = FramingStrategy.valueOf(context.getProperty(FRAMING_STRATEGY).getValue());
+        maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+        responseTimeoutNanos = context.getProperty(RESPONSE_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+        maxAnswerSize = context.getProperty(MAX_ANSWER_SIZE).asDataSize(DataUnit.B).intValue();
+        messagePool = new MessagePool(maxInFlight + MessageStream.DEFAULT_CAPACITY);
+        start();
+    }
+
+    // A sub-process never holds more answers than FlowFiles are in flight, so the stdout queue cannot overflow, and
+    // writing to stdin cannot block the sub-process on a full stdout pipe
+    private void start() {
+        stdoutQueue = new LinkedBlockingQueue<>(maxInFlight + 1);
+        stderrQueue = new LinkedBlockingQueue<>(ProcessInstance.STDERR_QUEUE_SIZE);
+        stdinQueue = new ArrayBlockingQueue<>(STDIN_QUEUE_SIZE);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, messagePool,
+                framingStrategy.createFramer(messagePool, Integer.MAX_VALUE, maxAnswerSize), OverflowPolicy.DROP_NEWEST, null);
+        handler.setStdinQueue(stdinQueue);
+
+        NuProcessBuilder pb = new NuProcessBuilder(Arrays.asList(cmdArray));
+        pb.setProcessListener(handler);
+        process = pb.start();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        if (!process.isRunning()) {
+            getLogger().warn("The sub-process has stopped with exit code {}, starting it again.", new Object[]{handler.getExitCode()});
+            releaseQueued();
+            start();
+            session.adjustCounter("Sub-process Restarts", 1, false);
+        }
+
+        final Deque<FlowFile> inFlight = new ArrayDeque<>();
+        try {
+            final long refillDeadline = System.nanoTime() + REFILL_NANOS;
+            long lastProgress = System.nanoTime();
+            while (true) {
+                FlowFile flowFile;
+                while (inFlight.size() < maxInFlight && System.nanoTime() - refillDeadline < 0 && (flowFile = session.get()) != null) {
+                    final long length = messageLength(session, flowFile);
+                    if (length < 0) {
+                        getLogger().error("The content of {} contains a line break, which would be taken for several messages; routing to failure.",
+                                new Object[]{flowFile});
+                        session.transfer(flowFile, REL_FAILURE);
+                        continue;
+                    }
+                    inFlight.add(flowFile);
+                    send(session, flowFile, length);
+                }
+                if (inFlight.isEmpty()) {
+                    break;
+                }
+
+                final Message answer = stdoutQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (answer == null) {
+                    checkProgress(lastProgress);
+                    continue;
+                }
+                lastProgress = System.nanoTime();
+                // Only taken out of flight once its answer is written, so that it is failed with the others otherwise
+                final FlowFile answered = receive(session, inFlight.peek(), answer);
+                inFlight.poll();
+                session.transfer(answered, REL_SUCCESS);
+            }
+        } catch (IOException | ProcessException e) {
+            getLogger().error("Failed to exchange {} FlowFiles with the sub-process due to {}. Starting it again.",
+                    new Object[]{inFlight.size(), e.getMessage()}, e);
+            failInFlight(session, inFlight);
+            kill();
+            context.yield();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failInFlight(session, inFlight);
+            kill();
+        } finally {
+            logStderr();
+        }
+    }
+
+    // The number of bytes of the content sent as a message. With line framing, a single trailing line break is left
+    // out, and -1 is returned if the content contains any other, since every answer would then go to the wrong FlowFile.
+    private long messageLength(final ProcessSession session, final FlowFile flowFile) {
+        if (framingStrategy != FramingStrategy.LINE) {
+            return flowFile.getSize();
+        }
+        final long[] lineBreak = {-1};
+        session.read(flowFile, in -> {
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            long offset = 0;
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n') {
+                        lineBreak[0] = offset + i;
+                        return;
+                    }
+                }
+                offset += n;
+            }
+        });
+        if (lineBreak[0] < 0) {
+            return flowFile.getSize();
+        }
+        return lineBreak[0] == flowFile.getSize() - 1 ? lineBreak[0] : -1;
+    }
+
+    private void send(final ProcessSession session, final FlowFile flowFile, final long length) throws IOException {
+        final long deadline = System.nanoTime() + responseTimeoutNanos;
+        offerStdin(ByteBuffer.wrap(framingStrategy.header(length)), deadline);
+        session.read(flowFile, in -> {
+            long remaining = length;
+            while (remaining > 0) {
+                final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, remaining)];
+                int n = 0;
+                int read;
+                while (n < chunk.length && (read = in.read(chunk, n, chunk.length - n)) > 0) {
+                    n += read;
+                }
+                if (n == 0) {
+                    break;
+                }
+                offerStdin(ByteBuffer.wrap(chunk, 0, n), deadline);
+                remaining -= n;
+            }
+        });
+        offerStdin(ByteBuffer.wrap(framingStrategy.trailer()), deadline);
+    }
+
+    private void offerStdin(final ByteBuffer chunk, final long deadline) throws IOException {
+        if (!chunk.hasRemaining()) {
+            return;
+        }
+        try {
+            while (!stdinQueue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!process.isRunning()) {
+                    throw new IOException("the sub-process has stopped");
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("the sub-process did not read its stdin within the response timeout");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing to the sub-process");
+        }
+        process.wantWrite();
+    }
+
+    private FlowFile receive(final ProcessSession session, final FlowFile flowFile, final Message answer) {
+        final MessageStream stream = answer.getStream();
+        try {
+            return session.write(flowFile, out -> {
+                answer.writeTo(out);
+                if (stream != null) {
+                    final long deadline = System.nanoTime() + responseTimeoutNanos;
+                    Message part;
+                    do {
+                        part = nextPart(stream, deadline);
+                        try {
+                            part.writeTo(out);
+                        } finally {
+                            part.release();
+                        }
+                    } while (part.isContinued());
+                }
+            });
+        } catch (ProcessException e) {
+            if (stream != null) {
+                stream.abort();
+            }
+            throw e;
+        } finally {
+            answer.release();
+        }
+    }
+
+    private Message nextPart(final MessageStream stream, final long deadline) throws IOException {
+        try {
+            Message part;
+            while ((part = stream.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (stream.isAborted()) {
+                    throw new IOException("the sub-process stopped writing the answer before it was complete");
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("the rest of the answer did not arrive within the response timeout");
+                }
+            }
+            return part;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rest of the answer");
+        }
+    }
+
+    private void checkProgress(final long lastProgress) throws IOException {
+        // No answer can be matched to its FlowFile any more
+        final String framingError = handler.takeFramingError();
+        if (framingError != null) {
+            throw new IOException(framingError);
+        }
+        if (!process.isRunning() && stdoutQueue.isEmpty()) {
+            throw new IOException("the sub-process has stopped with exit code " + handler.getExitCode());
+        }
+        if (System.nanoTime() - lastProgress > responseTimeoutNanos) {
+            throw new IOException("no answer arrived within the response timeout");
+        }
+    }
+
+    private void failInFlight(final ProcessSession session, final Deque<FlowFile> inFlight) {
+        FlowFile flowFile;
+        while ((flowFile = inFlight.poll()) != null) {
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+    }
+
+    // The sub-process is started again by the next trigger
+    private void kill() {
+        process.destroy(true);
+        try {
+            process.waitFor(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void logStderr() {
+        String line;
+        while ((line = stderrQueue.poll()) != null) {
+            getLogger().warn("The sub-process wrote to stderr: {}", new Object[]{line});
+        }
+    }
+
+    // Answers of a sub-process that was replaced cannot be matched to any FlowFile
+    private void releaseQueued() {
+        Message message;
+        while ((message = stdoutQueue.poll()) != null) {
+            if (message.getStream() != null) {
+                message.getStream().abort();
+            }
+            message.release();
+        }
+        stdinQueue.clear();
+    }
+
+    @OnStopped
+    public void onStopped(final ProcessContext context) throws Exception {
+        if (process == null) {
+            return;
+        }
+        handler.stop();
+
+        if (process.isRunning()) {
+            getLogger().info("Soft-killing sub-process...");
+            process.closeStdin(true);
+            process.destroy(false);
+            if (process.waitFor(3, TimeUnit.SECONDS) == Integer.MIN_VALUE) { // If timeout is reached
+                getLogger().warn("Failed to kill sub-process via soft-killing failed. Killing it by force now. Sub-process may not exit cleanly.");
+                process.destroy(true);
+            }
+        }
+        releaseQueued();
+        process = null;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message read from the sub-process, held as a slice of a reusable byte array.
+ * Once the consumer is done with it, the message should be handed back with {@link #release()}.
+ */
+final class Message {
+
+    private final MessagePool pool;
+    private byte[] data;
+    private int length;
+    private long timestamp; // System.nanoTime() when the message was read from the pipe
+    private boolean continued; // More parts of the same message follow
+    private MessageStream stream; // Set on the head of a message whose parts are streamed
+
+    Message(MessagePool pool, int capacity) {
+        this.pool = pool;
+        this.data = new byte[capacity];
+    }
+
+    void set(byte[] src, int offset, int len) {
+        if (data.length < len) {
+            data = new byte[len];
+        }
+        System.arraycopy(src, offset, data, 0, len);
+        length = len;
+        continued = false;
+    }
+
+    void read(DataInput in, int len) throws IOException {
+        if (data.length < len) {
+            data = new byte[len];
+        }
+        in.readFully(data, 0, len);
+        length = len;
+        continued = false;
+    }
+
+    // Prepares the message to be filled up piece by piece with append()
+    void reset(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[capacity];
+        }
+        length = 0;
+        continued = false;
+    }
+
+    void append(ByteBuffer src, int len) {
+        src.get(data, length, len);
+        length += len;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    int length() {
+        return length;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    boolean isContinued() {
+        return continued;
+    }
+
+    void setContinued(boolean continued) {
+        this.continued = continued;
+    }
+
+    MessageStream getStream() {
+        return stream;
+    }
+
+    void setStream(MessageStream stream) {
+        this.stream = stream;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    void release() {
+        stream = null;
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+
+    // Decoding only happens here, so callers that just copy bytes never pay for it
+    @Override
+    public String toString() {
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of {@link Message} instances shared between the NuProcess pump thread (acquire)
+ * and the processor's trigger thread (release).
+ */
+final class MessagePool {
+
+    static final int DEFAULT_MESSAGE_CAPACITY = 256;
+    // Arrays grown beyond this size are not kept, so a single huge message does not pin memory
+    static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private final BlockingQueue<Message> free;
+
+    MessagePool(int maxPooled) {
+        free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    Message acquire() {
+        Message message = free.poll();
+        if (message == null) {
+            message = new Message(this, DEFAULT_MESSAGE_CAPACITY);
+        }
+        return message;
+    }
+
+    void release(Message message) {
+        if (message.array().length <= MAX_POOLED_CAPACITY) {
+            free.offer(message);
+        }
+    }
+}
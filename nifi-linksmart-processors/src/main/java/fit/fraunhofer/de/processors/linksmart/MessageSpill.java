@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * File backed FIFO extension of the message queue, used by the {@link OverflowPolicy#SPILL} policy.
+ * Records are stored as [arrival timestamp (8 bytes)][length (4 bytes)][message bytes].
+ *
+ * <p>Records are appended to a series of segment files. A segment is deleted as soon as it has been read back,
+ * so a spill that is never drained completely still does not grow beyond the messages it holds, and its
+ * total size is limited to the maximum size given.</p>
+ *
+ * <p>Only the process handler appends and only the processor polls, so a spill that is seen as empty by
+ * the handler stays empty until the handler itself appends to it.</p>
+ */
+final class MessageSpill implements Closeable {
+
+    static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 12;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>(); // Read from the first, appended to the last
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private volatile long maxSize;
+    private long readPosition; // In the first segment
+    private long totalSize; // Of all segment files
+    private volatile int count;
+
+    MessageSpill(File directory, long maxSize) {
+        this(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MessageSpill(File directory, long maxSize, long segmentSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param maxSize the number of bytes the segment files may take up together. A spill that is larger
+     *                already keeps its messages, but takes no new ones until it has shrunk below the size.
+     */
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return false if the message was not appended, as the spill would grow beyond its maximum size
+     */
+    synchronized boolean append(Message message) throws IOException {
+        final int recordLength = HEADER_LENGTH + message.length();
+        if (totalSize + recordLength > maxSize) {
+            return false;
+        }
+
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition >= segmentSize) {
+            segment = new Segment(directory);
+            segments.addLast(segment);
+        }
+        putLong(header, 0, message.getTimestamp());
+        putInt(header, 8, message.length());
+        segment.raf.seek(segment.writePosition);
+        segment.raf.write(header);
+        segment.raf.write(message.array(), 0, message.length());
+        segment.writePosition += recordLength;
+        totalSize += recordLength;
+        count++;
+        return true;
+    }
+
+    /**
+     * @return the arrival timestamp of the oldest spilled message, or {@code null} if the spill is empty
+     */
+    synchronized Long peekTimestamp() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        final Segment segment = segments.getFirst();
+        segment.raf.seek(readPosition);
+        segment.raf.readFully(header, 0, 8);
+        return getLong(header, 0);
+    }
+
+    /**
+     * @return the oldest spilled message in a message taken from the given pool, or {@code null} if the spill is empty
+     */
+    synchronized Message poll(MessagePool pool) throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        final Segment segment = segments.getFirst();
+        segment.raf.seek(readPosition);
+        segment.raf.readFully(header);
+        final long timestamp = getLong(header, 0);
+        final int length = getInt(header, 8);
+
+        Message message = pool.acquire();
+        message.read(segment.raf, length);
+        message.setTimestamp(timestamp);
+
+        readPosition += HEADER_LENGTH + length;
+        count--;
+        if (readPosition == segment.writePosition) {
+            // Everything in the segment has been read back, so its space is given back right away
+            segments.removeFirst();
+            totalSize -= segment.writePosition;
+            readPosition = 0;
+            segment.delete();
+        }
+        return message;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        Segment segment;
+        while ((segment = segments.pollFirst()) != null) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        totalSize = 0;
+        count = 0;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private long writePosition;
+
+        Segment(File directory) throws IOException {
+            file = File.createTempFile("linksmart-spill-", ".bin", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+        }
+
+        void delete() throws IOException {
+            raf.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the parts of a message that is too large to be held in memory from the NuProcess pump thread over to
+ * the processor, which writes them to the content of a FlowFile as they arrive. Only a few parts are buffered,
+ * so the memory used for a message is bounded no matter how large it is. The last part is the one that is not
+ * {@link Message#isContinued() continued}.
+ */
+final class MessageStream {
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    private final BlockingQueue<Message> parts;
+    private final Runnable pollListener;
+    private volatile boolean aborted;
+
+    MessageStream(int capacity) {
+        this(capacity, () -> { });
+    }
+
+    /**
+     * @param pollListener called by the processor after every poll, so that the pump thread can hand off the parts
+     *                     it holds back while the stream is full
+     */
+    MessageStream(int capacity, Runnable pollListener) {
+        parts = new ArrayBlockingQueue<>(capacity);
+        this.pollListener = pollListener;
+    }
+
+    boolean offer(Message part) {
+        return parts.offer(part);
+    }
+
+    Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            return parts.poll(timeout, unit);
+        } finally {
+            pollListener.run();
+        }
+    }
+
+    // Called by either side when the message will not be completed, e.g. because the sub-process or the processor stopped
+    void abort() {
+        aborted = true;
+        Message part;
+        while ((part = parts.poll()) != null) {
+            part.release();
+        }
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer for any number of producer threads and a single consumer thread. Producers claim a slot with a
+ * CAS on the tail and publish it through a per-slot sequence number (D. Vyukov's bounded queue), so several
+ * sub-processes, possibly served by different pump threads, can feed the same buffer.
+ */
+final class MpscRingBuffer<E> extends AbstractRingBuffer<E> {
+
+    private final AtomicLongArray sequence;
+    private final AtomicLong head = new AtomicLong(); // Next index to read, written by the consumer only
+    private final AtomicLong tail = new AtomicLong(); // Next index to claim by a producer
+    private final AtomicLong published = new AtomicLong(); // Number of elements published so far, for size() only
+
+    MpscRingBuffer(int capacity) {
+        super(capacity);
+        sequence = new AtomicLongArray(buffer.length);
+        for (int i = 0; i < buffer.length; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long t = tail.get();
+        while (true) {
+            final long diff = sequence.get((int) t & mask) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+                t = tail.get();
+            } else if (diff < 0) {
+                return false; // The slot has not been read yet, so the buffer is full
+            } else {
+                t = tail.get(); // Another producer claimed this index in the meantime
+            }
+        }
+        final int slot = (int) t & mask;
+        buffer[slot] = e;
+        sequence.lazySet(slot, t + 1);
+        published.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        final long h = head.get();
+        final int slot = (int) h & mask;
+        if (sequence.get(slot) != h + 1) {
+            return null;
+        }
+        final E e = buffer[slot];
+        buffer[slot] = null;
+        // Hand the slot back to the producers for the next round
+        sequence.lazySet(slot, h + buffer.length);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        final long h = head.get();
+        final int slot = (int) h & mask;
+        return sequence.get(slot) == h + 1 ? buffer[slot] : null;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        long h = head.get();
+        int n = 0;
+        while (n < maxElements) {
+            final int slot = (int) h & mask;
+            if (sequence.get(slot) != h + 1) {
+                break;
+            }
+            c.add(buffer[slot]);
+            buffer[slot] = null;
+            sequence.lazySet(slot, h + buffer.length);
+            h++;
+            n++;
+        }
+        head.lazySet(h);
+        return n;
+    }
+
+    @Override
+    void snapshot(Collection<? super E> c) {
+        for (long i = head.get(); i - head.get() < buffer.length; i++) {
+            final int slot = (int) i & mask;
+            if (sequence.get(slot) != i + 1) {
+                break;
+            }
+            final E e = buffer[slot];
+            // Unless the slot has been handed back in the meantime, it still holds the element published for this index
+            if (e == null || sequence.get(slot) != i + 1) {
+                break;
+            }
+            c.add(e);
+        }
+    }
+
+    // Only published elements are counted, as a slot claimed by a producer that has not written it yet cannot be taken.
+    // While producers publish out of order, an element published after such a slot is counted before it can be taken.
+    @Override
+    public int size() {
+        final long h = head.get();
+        return (int) Math.max(0, Math.min(published.get() - h, buffer.length));
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+/**
+ * What the process handler does with a new message when the message queue is full.
+ */
+enum OverflowPolicy {
+
+    // Hold back new messages until the queue has room again, leaving the bytes read meanwhile in the read buffer,
+    // and drop them once that is full, since NuProcess reads on
+    BLOCK,
+
+    // Evict the oldest queued message to make room for the new one
+    DROP_OLDEST,
+
+    // Discard the new message
+    DROP_NEWEST,
+
+    // Append the new message (and every later one, to keep the order) to a file until the queue catches up
+    SPILL
+}
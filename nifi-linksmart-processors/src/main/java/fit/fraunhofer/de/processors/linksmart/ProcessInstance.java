@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.zaxxer.nuprocess.NuProcess;
+import com.zaxxer.nuprocess.NuProcessBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One copy of the sub-process run by {@link LinksmartGateway}, together with its own handler and its own
+ * shard of the message queue. Instances outlive a stop of the processor, so that messages which have not
+ * been emitted yet are picked up again by the next run.
+ */
+final class ProcessInstance {
+
+    static final String ENV_INSTANCE_INDEX = "LINKSMART_INSTANCE_INDEX";
+    static final String ENV_INSTANCE_COUNT = "LINKSMART_INSTANCE_COUNT";
+    static final int STDERR_QUEUE_SIZE = 1000; // Lines of stderr that are kept until the processor picks them up
+
+    private final int index;
+    private BlockingQueue<Message> stdoutQueue;
+    private BlockingQueue<String> stderrQueue = new LinkedBlockingQueue<>(STDERR_QUEUE_SIZE);
+    private MessagePool messagePool;
+    private MessageSpill spill;
+    private FramingStrategy framingStrategy;
+    private int streamingThreshold;
+    private OverflowPolicy overflowPolicy;
+    private RestartBackoff restartBackoff;
+    private String[] cmdArray;
+    private int instanceCount;
+
+    // The active process is replaced by the standby from the NuProcess thread as soon as it exits
+    private volatile LinksmartProcessHandler handler;
+    private volatile NuProcess process;
+    private LinksmartProcessHandler standbyHandler;
+    private NuProcess standbyProcess;
+    private boolean stopping; // No standby is swapped in while the processes are being destroyed
+    private final AtomicInteger promotedCount = new AtomicInteger();
+
+    ProcessInstance(int index) {
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Switches to a new queue shard, moving over the messages left in the previous one.
+     *
+     * @return the number of left over messages that did not fit into the new queue and had to be dropped
+     */
+    int configure(BlockingQueue<Message> queue, int poolSize, FramingStrategy framingStrategy, int streamingThreshold,
+                  OverflowPolicy overflowPolicy, File spillDirectory, long maxSpillSize, RestartBackoff restartBackoff) throws IOException {
+        int dropped = 0;
+        if (stdoutQueue != null) {
+            Message msg;
+            while ((msg = stdoutQueue.poll()) != null) {
+                if (!queue.offer(msg)) {
+                    msg.release();
+                    dropped++;
+                }
+            }
+        }
+        stdoutQueue = queue;
+        messagePool = new MessagePool(poolSize);
+
+        if (overflowPolicy == OverflowPolicy.SPILL && spill == null) {
+            spill = new MessageSpill(spillDirectory, maxSpillSize);
+        } else if (overflowPolicy == OverflowPolicy.SPILL) {
+            spill.setMaxSize(maxSpillSize);
+        } else if (overflowPolicy != OverflowPolicy.SPILL) {
+            // A spill left over from a run with a different policy is still drained, but no longer appended to
+            closeSpillIfEmpty();
+        }
+
+        this.framingStrategy = framingStrategy;
+        this.streamingThreshold = streamingThreshold;
+        this.overflowPolicy = overflowPolicy;
+        this.restartBackoff = restartBackoff;
+        return dropped;
+    }
+
+    synchronized void start(String[] cmdArray, int instanceCount) {
+        this.cmdArray = cmdArray;
+        this.instanceCount = instanceCount;
+        stopping = false;
+        restart();
+    }
+
+    /**
+     * Starts the command line of the last {@link #start} again, replacing the active process if it has exited.
+     */
+    synchronized void restart() {
+        final LinksmartProcessHandler previous = handler;
+        final LinksmartProcessHandler next = newHandler(true);
+        if (previous != null) {
+            next.absorbCounts(previous);
+        }
+        process = launch(next);
+        handler = next;
+    }
+
+    /**
+     * Starts a second copy of the process, whose output is discarded until the active process exits and the standby takes over.
+     */
+    synchronized void startStandby() {
+        standbyHandler = newHandler(false);
+        standbyProcess = launch(standbyHandler);
+    }
+
+    synchronized boolean isStandbyRunning() {
+        return standbyProcess != null && standbyProcess.isRunning();
+    }
+
+    int takePromotedCount() {
+        return promotedCount.getAndSet(0);
+    }
+
+    // Frames above the streaming threshold are never held in memory as a whole, so their length is not limited
+    private LinksmartProcessHandler newHandler(boolean active) {
+        final LinksmartProcessHandler newHandler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, messagePool,
+                framingStrategy.createFramer(messagePool, streamingThreshold, Integer.MAX_VALUE), overflowPolicy, overflowPolicy == OverflowPolicy.SPILL ? spill : null);
+        newHandler.setActive(active);
+        newHandler.setExitListener(() -> exited(newHandler));
+        return newHandler;
+    }
+
+    private NuProcess launch(LinksmartProcessHandler processHandler) {
+        NuProcessBuilder pb = new NuProcessBuilder(Arrays.asList(cmdArray));
+        pb.environment().put(ENV_INSTANCE_INDEX, String.valueOf(index));
+        pb.environment().put(ENV_INSTANCE_COUNT, String.valueOf(instanceCount));
+        pb.setProcessListener(processHandler);
+        return pb.start();
+    }
+
+    // Swaps in the standby right away, rather than waiting for the next trigger, so that hardly any output is missed
+    private synchronized void exited(LinksmartProcessHandler exitedHandler) {
+        if (stopping || exitedHandler != handler || standbyProcess == null || !standbyProcess.isRunning()) {
+            return;
+        }
+        standbyHandler.absorbCounts(exitedHandler);
+        standbyHandler.setActive(true);
+        handler = standbyHandler;
+        process = standbyProcess;
+        standbyHandler = null;
+        standbyProcess = null;
+        promotedCount.incrementAndGet();
+    }
+
+    RestartBackoff getRestartBackoff() {
+        return restartBackoff;
+    }
+
+    boolean hasProcess() {
+        return process != null;
+    }
+
+    boolean isRunning() {
+        final NuProcess current = process;
+        return current != null && current.isRunning();
+    }
+
+    int available() {
+        return stdoutQueue.size() + (spill == null ? 0 : spill.size());
+    }
+
+    boolean isStreaming() {
+        return handler != null && handler.isStreaming();
+    }
+
+    Long oldestTimestamp() throws IOException {
+        final Message oldest = stdoutQueue.peek();
+        if (oldest != null) {
+            return oldest.getTimestamp();
+        }
+        return spill == null ? null : spill.peekTimestamp();
+    }
+
+    // Spilled messages are always newer than the queued ones, so the spill is only read once the queue has been drained
+    int drainTo(List<Message> batch, int maxMessages) throws IOException {
+        int n = stdoutQueue.drainTo(batch, maxMessages);
+        while (spill != null && n < maxMessages) {
+            final Message msg = spill.poll(messagePool);
+            if (msg == null) {
+                break;
+            }
+            batch.add(msg);
+            n++;
+        }
+        final LinksmartProcessHandler current = handler;
+        if (current != null) {
+            current.resume();
+        }
+        return n;
+    }
+
+    int drainStderr(List<String> lines) {
+        return stderrQueue.drainTo(lines);
+    }
+
+    Integer exitCode() {
+        return handler == null ? null : handler.getExitCode();
+    }
+
+    String takeFramingError() {
+        return handler == null ? null : handler.takeFramingError();
+    }
+
+    long takeReadCount() {
+        return handler == null ? 0 : handler.takeReadCount();
+    }
+
+    long takeReadBytes() {
+        return handler == null ? 0 : handler.takeReadBytes();
+    }
+
+    long takeDroppedCount() {
+        return handler == null ? 0 : handler.takeDroppedCount();
+    }
+
+    long takePausedCount() {
+        return handler == null ? 0 : handler.takePausedCount();
+    }
+
+    long takeSpilledCount() {
+        return handler == null ? 0 : handler.takeSpilledCount();
+    }
+
+    long takeStderrDroppedCount() {
+        return handler == null ? 0 : handler.takeStderrDroppedCount();
+    }
+
+    // Releases the pump thread in case it is blocked on a full queue
+    synchronized void stopReading() {
+        if (handler != null) {
+            handler.stop();
+        }
+        if (standbyHandler != null) {
+            standbyHandler.stop();
+        }
+    }
+
+    synchronized void destroy(boolean force) {
+        stopping = true;
+        if (standbyProcess != null && standbyProcess.isRunning()) {
+            standbyProcess.destroy(force);
+        }
+        if (isRunning()) {
+            process.destroy(force);
+        }
+    }
+
+    /**
+     * @return false if a process was still running when the timeout was reached
+     */
+    boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+        final NuProcess standby;
+        final NuProcess active;
+        synchronized (this) {
+            standby = standbyProcess;
+            active = process;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return waitFor(standby, deadline) & waitFor(active, deadline);
+    }
+
+    // A timeout of 0 would make NuProcess wait forever
+    private static boolean waitFor(NuProcess nuProcess, long deadline) throws InterruptedException {
+        if (nuProcess == null || !nuProcess.isRunning()) {
+            return true;
+        }
+        final long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        return nuProcess.waitFor(remaining, TimeUnit.MILLISECONDS) != Integer.MIN_VALUE;
+    }
+
+    synchronized void detachProcess() {
+        process = null;
+        standbyProcess = null;
+        standbyHandler = null;
+    }
+
+    void closeSpillIfEmpty() throws IOException {
+        if (spill != null && spill.isEmpty()) {
+            spill.close();
+            spill = null;
+        }
+    }
+}
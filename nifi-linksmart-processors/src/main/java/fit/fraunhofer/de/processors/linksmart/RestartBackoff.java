@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Decides when a {@link ProcessInstance} whose sub-process has exited is started again. The delay doubles with every
+ * restart, up to a maximum, and starts over once a process kept running for longer than that maximum. Independent
+ * of the delay, at most a given number of processes are started within a sliding window.
+ * <p>
+ * Only used from the processor's trigger thread.
+ */
+final class RestartBackoff {
+
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final int maxRestarts;
+    private final long windowNanos;
+    private final Deque<Long> restarts = new ArrayDeque<>(); // Start times within the window, oldest first
+
+    private long delayNanos = -1; // Delay before the last restart, negative if there was none yet
+    private long dueNanos;
+    private boolean pending;
+    private long startedNanos;
+
+    RestartBackoff(long initialDelayNanos, long maxDelayNanos, int maxRestarts, long windowNanos) {
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = Math.max(initialDelayNanos, maxDelayNanos);
+        this.maxRestarts = maxRestarts;
+        this.windowNanos = windowNanos;
+    }
+
+    boolean isEnabled() {
+        return maxRestarts > 0;
+    }
+
+    /**
+     * Called whenever a process has been started, whether it counts as a restart or not.
+     */
+    void started(long now) {
+        startedNanos = now;
+        pending = false;
+    }
+
+    boolean isRateExceeded(long now) {
+        while (!restarts.isEmpty() && now - restarts.peekFirst() >= windowNanos) {
+            restarts.pollFirst();
+        }
+        return restarts.size() >= maxRestarts;
+    }
+
+    void recordRestart(long now) {
+        restarts.addLast(now);
+    }
+
+    /**
+     * @return the delay after which the restart is due
+     */
+    long scheduleRestart(long now) {
+        if (delayNanos < 0 || now - startedNanos > maxDelayNanos) {
+            delayNanos = initialDelayNanos;
+        } else {
+            delayNanos = Math.min(Math.max(1, delayNanos * 2), maxDelayNanos);
+        }
+        dueNanos = now + delayNanos;
+        pending = true;
+        return delayNanos;
+    }
+
+    boolean isRestartPending() {
+        return pending;
+    }
+
+    boolean isRestartDue(long now) {
+        return pending && now - dueNanos >= 0;
+    }
+}
@@ -1,35 +1,85 @@
 package fit.fraunhofer.de.processors.linksmart;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.util.EntityUtils;
 
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers a service entry in the Linksmart Service Catalog. All requests are asynchronous: they return at once, and
+ * complete their future from the I/O thread of the HTTP client. Only one request should be outstanding at a time.
+ */
+public class ServiceRegister implements Closeable {
+
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 10000;
+    // How long an idle connection is kept, if the Service Catalog does not say so in a Keep-Alive header
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final boolean ownsHttpClient;
+    private String url;
+    // Updated from the I/O thread once a request has completed
+    private volatile String id;
+    private volatile ByteArrayEntity body; // Built once, as it is sent with every registration
+    private byte[] bodyHash;
+    private volatile boolean registered; // Whether the Service Catalog holds the current body
+    private volatile boolean usePost; // Whether to use POST or PUT to create entry
 
-public class ServiceRegister {
 
-    private String url;
-    private String id;
-    private String body;
-    private boolean usePost; // Whether to use POST or PUT to create entry
+    public ServiceRegister(String url, String id, String body) throws IOException {
+        this(url, id, body, createHttpClient(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_SOCKET_TIMEOUT_MILLIS, DEFAULT_MAX_CONNECTIONS), true);
+    }
 
+    /**
+     * @param httpClient used for all requests, started if necessary, and shared with other registers, so it is not
+     *                   closed along with this register
+     */
+    public ServiceRegister(String url, String id, String body, CloseableHttpAsyncClient httpClient) {
+        this(url, id, body, httpClient, false);
+    }
 
-    public ServiceRegister(String url, String id, String body) {
+    private ServiceRegister(String url, String id, String body, CloseableHttpAsyncClient httpClient, boolean ownsHttpClient) {
+        this.httpClient = httpClient;
+        this.ownsHttpClient = ownsHttpClient;
+        if (!httpClient.isRunning()) {
+            httpClient.start();
+        }
         this.url = url;
-        this.body = body;
+        updateBody(body);
 
         if (id == null || id.equals("")) {
             usePost = true;
@@ -39,74 +89,253 @@ public class ServiceRegister {
         }
     }
 
-    public void registerService() throws IOException {
+    /**
+     * Creates a client that keeps its connections to the Service Catalog open between requests. A single I/O thread
+     * serves all requests, none of which blocks the caller.
+     *
+     * @param maxConnections the number of connections opened at most, which bounds the number of concurrent requests
+     */
+    static CloseableHttpAsyncClient createHttpClient(int connectTimeoutMillis, int socketTimeoutMillis, int maxConnections) throws IOException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(1)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSoTimeout(socketTimeoutMillis)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE_MILLIS;
+                })
+                .build();
+    }
+
+    /**
+     * @return the ID of the entry, or null while the Service Catalog has not assigned one yet
+     */
+    public String getId() {
+        return id;
+    }
 
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+    /**
+     * @return whether the Service Catalog holds the current body
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
 
-            HttpUriRequest request;
-            InputStreamEntity reqEntity = new InputStreamEntity(
-                    new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), -1, ContentType.APPLICATION_JSON);
+    /**
+     * @return true if the body differs from the previous one, in which case the next {@link #refresh()} sends the full entry
+     */
+    public boolean updateBody(String newBody) {
+        byte[] bytes = newBody.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = sha256(bytes);
+        if (Arrays.equals(hash, bodyHash)) {
+            return false;
+        }
+        body = new ByteArrayEntity(bytes, ContentType.APPLICATION_JSON);
+        bodyHash = hash;
+        registered = false;
+        return true;
+    }
 
-            if (usePost) {
-                HttpPost post = new HttpPost(url);
-                post.setEntity(reqEntity);
-                request = post;
-            } else {
-                HttpPut put = new HttpPut(url + "/" + id);
-                put.setEntity(reqEntity);
-                request = put;
+    /**
+     * Registers the entry if its body has changed since the last registration, otherwise only renews its TTL.
+     */
+    public CompletableFuture<Void> refresh() {
+        if (registered) {
+            return heartbeat();
+        } else {
+            return registerService();
+        }
+    }
+
+    // The Service Catalog has no separate endpoint for renewing an entry, so the unchanged, already encoded entry is
+    // PUT again, and the response, which would only repeat it, is not parsed
+    private CompletableFuture<Void> heartbeat() {
+        HttpPut put = new HttpPut(entryUrl());
+        put.setEntity(body);
+        ResponseHandler<Void> responseHandler = response -> {
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            if (status < 200 || status >= 300) {
+                throw new HttpResponseException(status, "Unexpected response status: " + status);
             }
+            return null;
+        };
+        return execute(httpClient, put, responseHandler);
+    }
 
-            ResponseHandler<ServiceEntry> responseHandler = response -> {
-                int status = response.getStatusLine().getStatusCode();
-                if (status >= 200 && status < 300) {
-                    HttpEntity entity = response.getEntity();
-                    Gson gson = new Gson();
-                    String s = entity != null ? EntityUtils.toString(entity) : null;
-                    return gson.fromJson(s, ServiceEntry.class);
-                } else {
-                    throw new ClientProtocolException("Unexpected response status: " + status);
-                }
-            };
+    public CompletableFuture<Void> registerService() {
+
+        final ByteArrayEntity sentBody = body;
+        HttpUriRequest request;
+        if (usePost) {
+            HttpPost post = new HttpPost(url);
+            post.setEntity(sentBody);
+            request = post;
+        } else {
+            HttpPut put = new HttpPut(entryUrl());
+            put.setEntity(sentBody);
+            request = put;
+        }
 
-            ServiceEntry serviceEntry = httpClient.execute(request, responseHandler);
-            id = serviceEntry.getId();
+        ResponseHandler<String> responseHandler = response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 200 && status < 300) {
+                HttpEntity entity = response.getEntity();
+                String s = entity != null ? EntityUtils.toString(entity) : null;
+                return parseServiceId(s);
+            } else {
+                throw new HttpResponseException(status, "Unexpected response status: " + status);
+            }
+        };
+
+        return execute(httpClient, request, responseHandler).thenAccept(newId -> {
+            id = newId;
             usePost = false;
+            // The body may have been changed while the request was on its way
+            registered = sentBody == body;
+        });
 
+    }
+
+    /**
+     * @return a completed future if the entry has never been registered
+     */
+    public CompletableFuture<Void> deregisterService() {
+        if (id == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
+        String deleteUrl = entryUrl();
+        HttpDelete httpDelete = new HttpDelete(deleteUrl);
+        ResponseHandler<String> responseHandler = response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 200 && status < 300) {
+                return null;
+            } else {
+                HttpEntity entity = response.getEntity();
+                Gson gson = new Gson();
+                String s = entity != null ? EntityUtils.toString(entity) : null;
+                ErrorResponse er;
+                try {
+                    er = gson.fromJson(s, ErrorResponse.class);
+                } catch (JsonParseException e) {
+                    er = null;
+                }
+                if (er == null) {
+                    throw new HttpResponseException(status, "Unexpected response status: " + status);
+                }
+                throw new HttpResponseException(status, "Error response code: " + er.getCode() + ", reason: " + er.getMessage());
+            }
+        };
+        return execute(httpClient, httpDelete, responseHandler).thenAccept(ignored -> registered = false);
+
+    }
+
+    // The response has been read completely, and its connection handed back to the pool, before the callback is called
+    static <T> CompletableFuture<T> execute(CloseableHttpAsyncClient httpClient, HttpUriRequest request, ResponseHandler<T> responseHandler) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        httpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    result.complete(responseHandler.handleResponse(response));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
 
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        return result;
     }
 
-    public void deregisterService() throws IOException {
+    @Override
+    public void close() throws IOException {
+        if (ownsHttpClient) {
+            httpClient.close();
+        }
+    }
 
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            String deleteUrl = url + "/" + id;
-            HttpDelete httpDelete = new HttpDelete(deleteUrl);
-            ResponseHandler<String> responseHandler = response -> {
-                int status = response.getStatusLine().getStatusCode();
-                if (status >= 200 && status < 300) {
-                    return null;
-                } else {
-                    HttpEntity entity = response.getEntity();
-                    Gson gson = new Gson();
-                    String s = entity != null ? EntityUtils.toString(entity) : null;
-                    ErrorResponse er = gson.fromJson(s, ErrorResponse.class);
-                    throw new ClientProtocolException("Error response code: " + er.getCode() + ", reason: " + er.getMessage());
-                }
-            };
-            httpClient.execute(httpDelete, responseHandler);
+    /**
+     * @param random between 0 and 1
+     * @return the time until the entry is refreshed: half the TTL, spread by 10% either way, so that
+     * many services started at the same time do not keep refreshing at the same time
+     */
+    static long refreshIntervalNanos(int ttl, double random) {
+        return (long) (TimeUnit.SECONDS.toNanos(ttl) * 0.5 * (0.9 + 0.2 * random));
+    }
+
+    // IDs may contain characters which are not allowed in a URL, or a '/' which would address another path
+    private String entryUrl() {
+        return url + "/" + encodePathSegment(id);
+    }
 
+    static String encodePathSegment(String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
         }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Reads the ID from the service entry returned by the Service Catalog
+    static String parseServiceId(String serviceEntryJson) {
+        Gson gson = new Gson();
+        return gson.fromJson(serviceEntryJson, ServiceEntry.class).getId();
+    }
+
+    // Reads a service entry returned by the Service Catalog
+    static ServiceEntry parseServiceEntry(String serviceEntryJson) {
+        Gson gson = new Gson();
+        return gson.fromJson(serviceEntryJson, ServiceEntry.class);
+    }
+
+    // Reads the service entries of a page returned by a filter of the Service Catalog
+    static List<ServiceEntry> parseServiceEntries(String serviceListJson) {
+        Gson gson = new Gson();
+        ServiceList serviceList = gson.fromJson(serviceListJson, ServiceList.class);
+        return serviceList != null && serviceList.services != null ? serviceList.services : Collections.<ServiceEntry>emptyList();
+    }
 
+    private static class ServiceList {
+        private List<ServiceEntry> services;
     }
 
-    private class ServiceEntry {
+    // The values of apis and meta are kept as they are, as meta may hold any JSON
+    static class ServiceEntry {
         private String id;
         private String name;
         private String description;
-        private Map<String, String> apis;
-        private Map<String, String> meta;
+        private Map<String, JsonElement> apis;
+        private Map<String, JsonElement> meta;
         private int ttl;
 
         public String getId() {
@@ -133,19 +362,19 @@ public class ServiceRegister {
             this.description = description;
         }
 
-        public Map<String, String> getApis() {
+        public Map<String, JsonElement> getApis() {
             return apis;
         }
 
-        public void setApis(Map<String, String> apis) {
+        public void setApis(Map<String, JsonElement> apis) {
             this.apis = apis;
         }
 
-        public Map<String, String> getMeta() {
+        public Map<String, JsonElement> getMeta() {
             return meta;
         }
 
-        public void setMeta(Map<String, String> meta) {
+        public void setMeta(Map<String, JsonElement> meta) {
             this.meta = meta;
         }
 
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer for exactly one producer thread and one consumer thread, e.g. a single NuProcess pump thread
+ * and a processor that is triggered serially. Each side only publishes its own index with an ordered write
+ * and caches the index of the other side, so the common case takes no locks and no CAS.
+ */
+final class SpscRingBuffer<E> extends AbstractRingBuffer<E> {
+
+    private final AtomicLong head = new AtomicLong(); // Next index to read, written by the consumer only
+    private final AtomicLong tail = new AtomicLong(); // Next index to write, written by the producer only
+    private long cachedHead; // Producer's view of head
+    private long cachedTail; // Consumer's view of tail
+
+    SpscRingBuffer(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final long t = tail.get();
+        if (t - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        final long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        final int slot = (int) h & mask;
+        final E e = buffer[slot];
+        buffer[slot] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        final long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        return buffer[(int) h & mask];
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        final long h = head.get();
+        cachedTail = tail.get();
+        final int n = (int) Math.max(0, Math.min(cachedTail - h, maxElements));
+        for (int i = 0; i < n; i++) {
+            final int slot = (int) (h + i) & mask;
+            c.add(buffer[slot]);
+            buffer[slot] = null;
+        }
+        // The whole batch is published back to the producer with a single write
+        head.lazySet(h + n);
+        return n;
+    }
+
+    @Override
+    void snapshot(Collection<? super E> c) {
+        final long h = head.get();
+        final long t = tail.get();
+        for (long i = h; i < t; i++) {
+            final E e = buffer[(int) i & mask];
+            // Unless the consumer has gone past it, the slot still holds the element, and not one of a later round
+            if (e == null || head.get() > i) {
+                break;
+            }
+            c.add(e);
+        }
+    }
+
+    @Override
+    public int size() {
+        final long h = head.get();
+        final long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, buffer.length));
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import fit.fraunhofer.de.services.linksmart.ServiceCatalogEntry;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@Tags({"linksmart", "service catalog"})
+@CapabilityDescription("Shares one pool of connections to the Linksmart Service Catalog between processors, renews the service " +
+        "entries registered through it in time-sliced batches, and looks up service entries.")
+public class StandardLinksmartServiceCatalogService extends AbstractControllerService implements LinksmartServiceCatalogService {
+
+    public static final PropertyDescriptor SC_URL = new PropertyDescriptor.Builder()
+            .name("SC_URL")
+            .displayName("Service Catalog URL")
+            .description("The URL of the Linksmart Service Catalog.")
+            .required(true)
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("CONNECT_TIMEOUT")
+            .displayName("Connection Timeout")
+            .description("How long to wait for a connection to the Service Catalog to be established.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 secs")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor SOCKET_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("SOCKET_TIMEOUT")
+            .displayName("Read Timeout")
+            .description("How long to wait for a response of the Service Catalog.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 secs")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("MAX_CONNECTIONS")
+            .displayName("Maximum Connections")
+            .description("The number of connections to the Service Catalog opened at most. Requests beyond this wait for a free connection.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor REFRESH_SLICE = new PropertyDescriptor.Builder()
+            .name("REFRESH_SLICE")
+            .displayName("Refresh Slice")
+            .description("Entries are renewed in batches once per slice. All entries due before the end of the next slice are renewed " +
+                    "together, which may be up to one slice earlier than necessary.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 sec")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_REFRESHES_PER_SLICE = new PropertyDescriptor.Builder()
+            .name("MAX_REFRESHES_PER_SLICE")
+            .displayName("Maximum Refreshes per Slice")
+            .description("The number of entries renewed at most in one slice, which bounds the request rate to the Service Catalog. " +
+                    "Entries beyond this are renewed with the following slices.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor FAILURE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("FAILURE_THRESHOLD")
+            .displayName("Circuit Breaker Failure Threshold")
+            .description("After this many requests in a row have failed, requests to the Service Catalog are suspended, and fail at once " +
+                    "without being sent. Error responses other than server errors do not count as failures.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("5")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor INITIAL_CIRCUIT_BACKOFF = new PropertyDescriptor.Builder()
+            .name("INITIAL_CIRCUIT_BACKOFF")
+            .displayName("Initial Circuit Breaker Backoff")
+            .description("How long requests are suspended before a single trial request is sent. If it fails as well, the backoff doubles, " +
+                    "up to the <Maximum Circuit Breaker Backoff>. Every backoff is shortened by up to half at random, so that many " +
+                    "NiFi nodes do not try again at the same time.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 secs")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_CIRCUIT_BACKOFF = new PropertyDescriptor.Builder()
+            .name("MAX_CIRCUIT_BACKOFF")
+            .displayName("Maximum Circuit Breaker Backoff")
+            .description("The longest time requests are suspended before a trial request is sent.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 mins")
+            .required(true)
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES;
+
+    static {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(SC_URL);
+        properties.add(CONNECT_TIMEOUT);
+        properties.add(SOCKET_TIMEOUT);
+        properties.add(MAX_CONNECTIONS);
+        properties.add(REFRESH_SLICE);
+        properties.add(MAX_REFRESHES_PER_SLICE);
+        properties.add(FAILURE_THRESHOLD);
+        properties.add(INITIAL_CIRCUIT_BACKOFF);
+        properties.add(MAX_CIRCUIT_BACKOFF);
+        PROPERTIES = Collections.unmodifiableList(properties);
+    }
+
+    // Registrations waiting for their next refresh, the earliest first. Registrations with a request on its way are not in here.
+    private final PriorityQueue<Registration> due = new PriorityQueue<>(Comparator.comparingLong(r -> r.nextRefreshNanos));
+
+    private volatile String url;
+    private volatile CloseableHttpAsyncClient httpClient;
+    private volatile CircuitBreaker circuitBreaker;
+    private ScheduledExecutorService scheduler;
+    private long sliceNanos;
+    private int maxRefreshesPerSlice;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws IOException {
+        url = context.getProperty(SC_URL).getValue();
+        sliceNanos = context.getProperty(REFRESH_SLICE).asTimePeriod(TimeUnit.NANOSECONDS);
+        maxRefreshesPerSlice = context.getProperty(MAX_REFRESHES_PER_SLICE).asInteger();
+        circuitBreaker = new CircuitBreaker(context.getProperty(FAILURE_THRESHOLD).asInteger(),
+                context.getProperty(INITIAL_CIRCUIT_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS),
+                context.getProperty(MAX_CIRCUIT_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS));
+        httpClient = ServiceRegister.createHttpClient(
+                context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(SOCKET_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(MAX_CONNECTIONS).asInteger());
+        httpClient.start();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Linksmart Service Catalog refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshDue, sliceNanos, sliceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @OnDisabled
+    public void onDisabled() throws IOException {
+        // Processors referencing this service have been stopped, and have deregistered their entries
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        synchronized (due) {
+            due.clear();
+        }
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
+    @Override
+    public ServiceCatalogEntry register(String id, String body, int ttl) {
+        final Registration registration = new Registration(new ServiceRegister(url, id, body, httpClient), ttl);
+        schedule(registration, System.nanoTime());
+        return registration;
+    }
+
+    @Override
+    public boolean isCircuitOpen() {
+        return circuitBreaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    @Override
+    public CompletableFuture<String> getEntry(String id) {
+        return guarded(() -> ServiceRegister.execute(httpClient, new HttpGet(url + "/" + ServiceRegister.encodePathSegment(id)), response -> {
+            if (response.getStatusLine().getStatusCode() == 404) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            return responseBody(response);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<String> findEntries(String path, String operator, String value) {
+        final String findUrl = url + "/" + ServiceRegister.encodePathSegment(path) + "/" + ServiceRegister.encodePathSegment(operator) + "/" + ServiceRegister.encodePathSegment(value);
+        return guarded(() -> ServiceRegister.execute(httpClient, new HttpGet(findUrl), StandardLinksmartServiceCatalogService::responseBody));
+    }
+
+    @Override
+    public CompletableFuture<String> putEntry(String id, String body) {
+        final ServiceRegister register = new ServiceRegister(url, id, body, httpClient);
+        return guarded(() -> register.registerService().thenApply(ignored -> register.getId()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteEntry(String id) {
+        return guarded(() -> ServiceRegister.execute(httpClient, new HttpDelete(url + "/" + ServiceRegister.encodePathSegment(id)), response -> {
+            final int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            if (status == 404) {
+                return false;
+            }
+            if (status < 200 || status >= 300) {
+                throw new HttpResponseException(status, "Unexpected response status: " + status);
+            }
+            return true;
+        }));
+    }
+
+    // Sends the request only while the circuit breaker lets it through
+    private <T> CompletableFuture<T> guarded(Supplier<CompletableFuture<T>> request) {
+        if (!circuitBreaker.allowRequest(System.nanoTime())) {
+            final CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new CircuitOpenException());
+            return rejected;
+        }
+        return send(request);
+    }
+
+    // Records the outcome of a request let through by the circuit breaker
+    private <T> CompletableFuture<T> send(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        return response.whenComplete((ignored, failure) -> {
+            if (failure != null && !(unwrap(failure) instanceof IOException)) {
+                // The request never reached the Service Catalog, so it tells nothing about its availability
+                circuitBreaker.releaseRequest();
+                return;
+            }
+            if (failure == null || !isUnavailable(failure)) {
+                if (circuitBreaker.recordSuccess()) {
+                    getLogger().info("The Service Catalog is available again, resuming requests.");
+                }
+                return;
+            }
+            final long openNanos = circuitBreaker.recordFailure(System.nanoTime(), ThreadLocalRandom.current().nextDouble());
+            if (openNanos > 0) {
+                getLogger().warn("Requests to the Service Catalog keep failing, the last one due to {}. Suspending requests for {} ms.",
+                        new Object[]{unwrap(failure).getMessage(), TimeUnit.NANOSECONDS.toMillis(openNanos)});
+            }
+        });
+    }
+
+    // Only I/O errors and server errors count, as other failures are caused by the request itself, e.g. an invalid ID,
+    // and must not suspend the requests of all other processors
+    static boolean isUnavailable(Throwable failure) {
+        final Throwable cause = unwrap(failure);
+        if (cause instanceof HttpResponseException) {
+            return ((HttpResponseException) cause).getStatusCode() >= 500;
+        }
+        return cause instanceof IOException;
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static String responseBody(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        String s = entity != null ? EntityUtils.toString(entity) : null;
+        if (status < 200 || status >= 300) {
+            throw new HttpResponseException(status, "Unexpected response status: " + status);
+        }
+        return s;
+    }
+
+    // Runs once per slice, and sends the refreshes of all entries due before the next slice at once.
+    // Any exception thrown here would cancel the scheduled task for good, so none is let through.
+    void refreshDue() {
+        try {
+            final long horizon = System.nanoTime() + sliceNanos;
+            final List<Registration> batch = new ArrayList<>();
+            synchronized (due) {
+                // While the Service Catalog is unavailable, due entries wait in the queue, and are renewed at the rate above once it is back
+                while (batch.size() < maxRefreshesPerSlice && !due.isEmpty() && due.peek().nextRefreshNanos - horizon <= 0
+                        && circuitBreaker.allowRequest(System.nanoTime())) {
+                    batch.add(due.poll());
+                }
+            }
+            for (Registration registration : batch) {
+                try {
+                    registration.refresh();
+                } catch (RuntimeException e) {
+                    // Taken from the queue already, so it has to be put back to be refreshed at all
+                    getLogger().error("Failed to refresh the service entry {} due to {}. Retrying with the next slice.",
+                            new Object[]{registration.getId(), e.getMessage()}, e);
+                    schedule(registration, System.nanoTime() + sliceNanos);
+                }
+            }
+        } catch (RuntimeException e) {
+            getLogger().error("Failed to refresh the due service entries due to {}. Retrying with the next slice.", new Object[]{e.getMessage()}, e);
+        }
+    }
+
+    private void schedule(Registration registration, long refreshNanos) {
+        synchronized (due) {
+            if (!registration.deregistered) {
+                registration.nextRefreshNanos = refreshNanos;
+                due.add(registration);
+            }
+        }
+    }
+
+    private class Registration implements ServiceCatalogEntry {
+        private final ServiceRegister register;
+        private final int ttl;
+        private long nextRefreshNanos; // Guarded by the queue
+        private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null); // Guarded by this
+        private volatile boolean deregistered;
+
+        Registration(ServiceRegister register, int ttl) {
+            this.register = register;
+            this.ttl = ttl;
+        }
+
+        synchronized void refresh() {
+            if (deregistered) {
+                circuitBreaker.releaseRequest();
+                return;
+            }
+            // Let through by the circuit breaker when it was taken from the queue
+            pending = send(register::refresh).whenComplete((ignored, failure) -> {
+                final long now = System.nanoTime();
+                if (failure == null) {
+                    // A body changed while the request was on its way is registered with the next slice
+                    schedule(this, register.isRegistered() ? now + ServiceRegister.refreshIntervalNanos(ttl, ThreadLocalRandom.current().nextDouble()) : now);
+                } else {
+                    // Retried well before the entry expires, spread so that failed entries do not all come back at once
+                    final long retryNanos = (long) (Math.max(TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(ttl) / 10)
+                            * (0.5 + 0.5 * ThreadLocalRandom.current().nextDouble()));
+                    final Throwable cause = unwrap(failure);
+                    getLogger().error("Failed to refresh the service entry {} due to {}. Retrying in {} ms.",
+                            new Object[]{register.getId(), cause.getMessage(), TimeUnit.NANOSECONDS.toMillis(retryNanos)}, cause);
+                    schedule(this, now + retryNanos);
+                }
+            });
+        }
+
+        @Override
+        public String getId() {
+            return register.getId();
+        }
+
+        @Override
+        public boolean updateBody(String body) {
+            if (!register.updateBody(body)) {
+                return false;
+            }
+            synchronized (due) {
+                if (due.remove(this)) {
+                    nextRefreshNanos = System.nanoTime();
+                    due.add(this);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<Void> deregister() {
+            final CompletableFuture<Void> last;
+            synchronized (this) {
+                deregistered = true;
+                last = pending;
+            }
+            synchronized (due) {
+                due.remove(this);
+            }
+            // A registration still on its way has to complete first, otherwise it could create the entry again after it was deleted
+            return last.exceptionally(failure -> null).thenCompose(ignored -> guarded(register::deregisterService));
+        }
+    }
+
+}
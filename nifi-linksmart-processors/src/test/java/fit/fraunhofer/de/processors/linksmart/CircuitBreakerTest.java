@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testOpensAfterFailureThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 4 * SECOND, 60 * SECOND);
+
+        assertEquals(0, breaker.recordFailure(0, 1));
+        assertEquals(0, breaker.recordFailure(0, 1));
+        assertEquals("Circuit should open with the third failure", 4 * SECOND, breaker.recordFailure(0, 1));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Requests should be rejected while open", breaker.allowRequest(4 * SECOND - 1));
+    }
+
+    @Test
+    public void testSingleTrialRequestWhenHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 4 * SECOND, 60 * SECOND);
+        breaker.recordFailure(0, 1);
+
+        assertTrue("Trial request should be let through after the backoff", breaker.allowRequest(4 * SECOND));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("Only one trial request should be let through", breaker.allowRequest(4 * SECOND));
+
+        assertTrue("Successful trial should close the circuit", breaker.recordSuccess());
+        assertTrue(breaker.allowRequest(4 * SECOND));
+    }
+
+    @Test
+    public void testBackoffDoublesWithJitter() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 4 * SECOND, 10 * SECOND);
+
+        assertEquals("Backoff should be shortened by half at most", 2 * SECOND, breaker.recordFailure(0, 0));
+        breaker.allowRequest(2 * SECOND);
+        assertEquals("Failed trial should double the backoff", 8 * SECOND, breaker.recordFailure(2 * SECOND, 1));
+        breaker.allowRequest(10 * SECOND);
+        assertEquals("Backoff should not exceed the maximum", 10 * SECOND, breaker.recordFailure(10 * SECOND, 1));
+
+        breaker.allowRequest(20 * SECOND);
+        breaker.recordSuccess();
+        breaker.recordFailure(20 * SECOND, 1);
+        assertFalse(breaker.allowRequest(24 * SECOND - 1));
+        assertTrue("Backoff should start over once closed", breaker.allowRequest(24 * SECOND));
+    }
+
+    @Test
+    public void testReleasedTrialLetsNextRequestThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, SECOND, SECOND);
+        breaker.recordFailure(0, 1);
+        breaker.allowRequest(SECOND);
+
+        breaker.releaseRequest();
+        assertTrue(breaker.allowRequest(SECOND));
+    }
+
+    @Test
+    public void testOnlyServerErrorsCountAsUnavailable() {
+        assertTrue(StandardLinksmartServiceCatalogService.isUnavailable(new CompletionException(new IOException("Connection refused"))));
+        assertTrue(StandardLinksmartServiceCatalogService.isUnavailable(new HttpResponseException(503, "Service Unavailable")));
+        assertFalse(StandardLinksmartServiceCatalogService.isUnavailable(new CompletionException(new HttpResponseException(400, "Bad Request"))));
+        assertFalse("Local errors should not count as an outage",
+                StandardLinksmartServiceCatalogService.isUnavailable(new CompletionException(new IllegalArgumentException("Illegal character in path"))));
+        assertFalse(StandardLinksmartServiceCatalogService.isUnavailable(new NullPointerException()));
+    }
+
+}
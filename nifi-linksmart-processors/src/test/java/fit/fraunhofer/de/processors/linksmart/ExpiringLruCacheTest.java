@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExpiringLruCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CompletableFuture<String> load(String key) {
+        loads.incrementAndGet();
+        return CompletableFuture.completedFuture(key.toUpperCase());
+    }
+
+    @Test
+    public void testValueCachedUntilExpired() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, value -> 100, now::get);
+
+        assertEquals("A", cache.get("a", this::load).get());
+        now.set(99);
+        assertEquals("A", cache.get("a", this::load).get());
+        assertEquals("Value should only be loaded once", 1, loads.get());
+
+        now.set(100);
+        cache.get("a", this::load).get();
+        assertEquals("Expired value should be loaded again", 2, loads.get());
+        assertEquals(1, cache.takeHitCount());
+        assertEquals(2, cache.takeLoadCount());
+    }
+
+    @Test
+    public void testExpiryTakenFromValue() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, value -> value.length(), now::get);
+
+        cache.get("a", this::load).get();
+        cache.get("abc", this::load).get();
+        now.set(2);
+        cache.get("a", this::load).get();
+        cache.get("abc", this::load).get();
+
+        assertEquals("Only the value with the shorter expiry should be loaded again", 3, loads.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2, value -> 100, now::get);
+
+        cache.get("a", this::load).get();
+        cache.get("b", this::load).get();
+        cache.get("a", this::load).get();
+        cache.get("c", this::load).get();
+        assertEquals(2, cache.size());
+
+        cache.get("a", this::load).get();
+        assertEquals("Recently used value should be kept", 3, loads.get());
+        cache.get("b", this::load).get();
+        assertEquals("Least recently used value should be evicted", 4, loads.get());
+    }
+
+    @Test
+    public void testValueBeingLoadedNotEvicted() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(1, value -> 100, now::get);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> first = cache.get("a", key -> pending);
+        cache.get("b", this::load).get();
+        assertSame("Value being loaded should still be shared", first, cache.get("a", key -> {
+            fail("Value being loaded should not be loaded again");
+            return null;
+        }));
+        assertEquals(2, cache.size());
+
+        pending.complete("A");
+        cache.get("c", this::load).get();
+        assertEquals("The size should be restored once the load has completed", 1, cache.size());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, value -> 100, now::get);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        CompletableFuture<String> first = cache.get("a", key -> pending);
+        CompletableFuture<String> second = cache.get("a", key -> {
+            fail("Value being loaded should not be loaded again");
+            return null;
+        });
+        assertSame(first, second);
+
+        pending.complete("A");
+        assertEquals("A", second.get());
+    }
+
+    @Test
+    public void testFailedLoadNotCached() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10, value -> 100, now::get);
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("unavailable"));
+
+        try {
+            cache.get("a", key -> failed).get();
+            fail("Failure should be passed on");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals("A", cache.get("a", this::load).get());
+        assertEquals(0, cache.takeHitCount());
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import fit.fraunhofer.de.services.linksmart.LinksmartServiceCatalogService;
+import fit.fraunhofer.de.services.linksmart.ServiceCatalogEntry;
+import org.apache.nifi.controller.AbstractControllerService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Service Catalog for the tests of the processors using one. Records every request, looks entries up in {@link #entries},
+ * and assigns the same ID to every entry registered without one. Answers are given right away, or after
+ * {@link #responseDelayMillis} on another thread, like the I/O thread of the HTTP client does.
+ */
+class FakeServiceCatalog extends AbstractControllerService implements LinksmartServiceCatalogService {
+
+    static final String ASSIGNED_ID = "assigned";
+
+    final Map<String, String> entries = Collections.synchronizedMap(new LinkedHashMap<>()); // Known entries by ID
+    final List<String> registeredIds = Collections.synchronizedList(new ArrayList<>());
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<>()); // Put one by one
+    final List<String> deletedIds = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger lookups = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    volatile long responseDelayMillis;
+    volatile Function<String, Throwable> putFailure = body -> null; // The failure a put of the body ends with, if any
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ScheduledExecutorService responses = Executors.newScheduledThreadPool(4);
+
+    void shutdown() {
+        responses.shutdownNow();
+    }
+
+    @Override
+    public ServiceCatalogEntry register(String id, String body, int ttl) {
+        registeredIds.add(id);
+        return new ServiceCatalogEntry() {
+            @Override
+            public String getId() {
+                return id != null ? id : ASSIGNED_ID;
+            }
+
+            @Override
+            public boolean updateBody(String body) {
+                return false;
+            }
+
+            @Override
+            public CompletableFuture<Void> deregister() {
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+    }
+
+    @Override
+    public boolean isCircuitOpen() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<String> getEntry(String id) {
+        lookups.incrementAndGet();
+        return respond(entries.get(id), null);
+    }
+
+    // Every known entry matches the filter
+    @Override
+    public CompletableFuture<String> findEntries(String path, String operator, String value) {
+        lookups.incrementAndGet();
+        synchronized (entries) {
+            return respond("{\"services\": [" + String.join(", ", entries.values()) + "]}", null);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> putEntry(String id, String body) {
+        bodies.add(body);
+        return respond(id != null ? id : ASSIGNED_ID, putFailure.apply(body));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteEntry(String id) {
+        deletedIds.add(id);
+        return respond(true, null);
+    }
+
+    private <T> CompletableFuture<T> respond(T value, Throwable failure) {
+        final CompletableFuture<T> response = new CompletableFuture<>();
+        final Runnable answer = () -> {
+            if (failure == null) {
+                response.complete(value);
+            } else {
+                response.completeExceptionally(failure);
+            }
+        };
+        if (responseDelayMillis <= 0) {
+            answer.run();
+            return response;
+        }
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        responses.schedule(() -> {
+            inFlight.decrementAndGet();
+            answer.run();
+        }, responseDelayMillis, TimeUnit.MILLISECONDS);
+        return response;
+    }
+}
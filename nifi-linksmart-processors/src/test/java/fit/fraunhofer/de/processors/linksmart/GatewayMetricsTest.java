@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GatewayMetricsTest {
+
+    @Test
+    public void testSnapshot () {
+        GatewayMetrics metrics = new GatewayMetrics();
+        metrics.addRead(10, 100);
+        metrics.addDropped(2);
+        metrics.sampleQueueDepth(7);
+        metrics.sampleQueueDepth(3);
+        metrics.recordBatch(5);
+        metrics.recordBatch(10);
+
+        GatewayMetrics.Snapshot snapshot = metrics.snapshot(10);
+
+        assertEquals(10, snapshot.messagesRead);
+        assertEquals(100, snapshot.bytesRead);
+        assertEquals(2, snapshot.messagesDropped);
+        assertEquals(7, snapshot.queueHighWaterMark);
+        assertEquals(0.75, snapshot.batchFillRatio, 1e-9);
+        assertTrue("Rate should be positive", snapshot.messagesPerSecond > 0);
+    }
+
+    @Test
+    public void testLatencyPercentiles () {
+        GatewayMetrics metrics = new GatewayMetrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.recordLatency(TimeUnit.MICROSECONDS.toNanos(500));
+        }
+        metrics.recordLatency(TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.recordLatency(TimeUnit.MILLISECONDS.toNanos(3000));
+
+        GatewayMetrics.Snapshot snapshot = metrics.snapshot(1);
+
+        assertEquals(1, snapshot.latencyMillisP50);
+        assertEquals(1, snapshot.latencyMillisP90);
+        assertEquals(50, snapshot.latencyMillisP99);
+        assertEquals(3000, snapshot.latencyMillisMax);
+    }
+
+    @Test
+    public void testSnapshotStartsNewInterval () {
+        GatewayMetrics metrics = new GatewayMetrics();
+        metrics.addRead(10, 100);
+        metrics.sampleQueueDepth(7);
+        metrics.recordLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.snapshot(1);
+
+        GatewayMetrics.Snapshot snapshot = metrics.snapshot(1);
+
+        assertEquals("Totals should be kept", 10, snapshot.messagesRead);
+        assertEquals("High-water mark should be reset", 0, snapshot.queueHighWaterMark);
+        assertEquals("Latencies should be reset", 0, snapshot.latencyMillisMax);
+        assertEquals("Rate should be reset", 0, snapshot.messagesPerSecond, 1e-9);
+    }
+}
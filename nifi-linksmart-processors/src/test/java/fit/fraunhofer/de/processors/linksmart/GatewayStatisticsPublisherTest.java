@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class GatewayStatisticsPublisherTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static GatewayStatistics.Snapshot snapshot(long read, long dropped, long depth, long uptimeSeconds) {
+        return new GatewayStatistics.Snapshot(Collections.singletonMap("gateway", new GatewayStatistics.Totals(read, dropped)),
+                depth, uptimeSeconds * SECOND);
+    }
+
+    // The totals of read messages by gateway ID, given in pairs
+    private static GatewayStatistics.Snapshot snapshot(Object... readByGateway) {
+        final Map<String, GatewayStatistics.Totals> totals = new HashMap<>();
+        for (int i = 0; i < readByGateway.length; i += 2) {
+            totals.put((String) readByGateway[i], new GatewayStatistics.Totals((Integer) readByGateway[i + 1], 0));
+        }
+        return new GatewayStatistics.Snapshot(totals, 0, 0);
+    }
+
+    @Test
+    public void testRatesSinceLastSample() {
+        GatewayStatisticsPublisher publisher = new GatewayStatisticsPublisher(0.1, snapshot(1000, 0, 0, 0), 0);
+
+        Map<String, Number> values = publisher.sample(snapshot(1600, 200, 42, 60), 60 * SECOND);
+        assertEquals(10.0, values.get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+        assertEquals(0.25, values.get(GatewayStatisticsPublisher.DROP_RATE));
+        assertEquals(42L, values.get(GatewayStatisticsPublisher.QUEUE_DEPTH));
+        assertEquals(60L, values.get(GatewayStatisticsPublisher.UPTIME));
+        assertEquals(1, values.get(GatewayStatisticsPublisher.GATEWAYS));
+    }
+
+    @Test
+    public void testSmallChangesNotPublished() {
+        GatewayStatisticsPublisher publisher = new GatewayStatisticsPublisher(0.1, snapshot(0, 0, 0, 0), 0);
+        Map<String, Number> published = publisher.sample(snapshot(600, 0, 100, 60), 60 * SECOND);
+
+        assertSame("Changes within the threshold should keep the published values",
+                published, publisher.sample(snapshot(1250, 0, 105, 120), 120 * SECOND));
+
+        Map<String, Number> values = publisher.sample(snapshot(1950, 0, 105, 180), 180 * SECOND);
+        assertEquals(11.67, values.get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+        assertEquals("The uptime should be published along with the changed values", 180L, values.get(GatewayStatisticsPublisher.UPTIME));
+    }
+
+    @Test
+    public void testRestartPublished() {
+        GatewayStatisticsPublisher publisher = new GatewayStatisticsPublisher(0.1, snapshot(0, 0, 0, 0), 0);
+        publisher.sample(snapshot(0, 0, 0, 600), 60 * SECOND);
+
+        Map<String, Number> values = publisher.sample(snapshot(0, 0, 0, 5), 120 * SECOND);
+        assertEquals(5L, values.get(GatewayStatisticsPublisher.UPTIME));
+    }
+
+    @Test
+    public void testStoppedGatewayNotCountedAsNegative() {
+        GatewayStatisticsPublisher publisher = new GatewayStatisticsPublisher(0, snapshot("a", 1000, "b", 100), 0);
+
+        Map<String, Number> values = publisher.sample(snapshot("b", 700), 60 * SECOND);
+        assertEquals("The messages of the remaining gateway should still be counted",
+                10.0, values.get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+        assertEquals(1, values.get(GatewayStatisticsPublisher.GATEWAYS));
+    }
+
+    @Test
+    public void testStartedAndRestartedGatewaysCountedFromZero() {
+        GatewayStatisticsPublisher publisher = new GatewayStatisticsPublisher(0, snapshot("a", 1000), 0);
+
+        Map<String, Number> values = publisher.sample(snapshot("a", 200, "b", 400), 60 * SECOND);
+        assertEquals(10.0, values.get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+    }
+
+    @Test
+    public void testSnapshotSumsAllGateways() {
+        GatewayStatistics first = new GatewayStatistics(0);
+        GatewayStatistics second = new GatewayStatistics(10 * SECOND);
+        first.addRead(5);
+        first.setQueueDepth(3);
+        second.addRead(7);
+        second.addDropped(2);
+        second.setQueueDepth(4);
+        Map<String, GatewayStatistics> gateways = new HashMap<>();
+        gateways.put("first", first);
+        gateways.put("second", second);
+
+        GatewayStatistics.Snapshot snapshot = GatewayStatistics.snapshot(gateways, 30 * SECOND);
+        assertEquals(2, snapshot.gateways);
+        assertEquals(12, snapshot.messagesRead);
+        assertEquals(2, snapshot.messagesDropped);
+        assertEquals(7, snapshot.queueDepth);
+        assertEquals(5, snapshot.totals.get("first").messagesRead);
+        assertEquals("The uptime should be the one of the latest start", 20 * SECOND, snapshot.uptimeNanos);
+    }
+
+    @Test
+    public void testRegistryKeepsStatisticsById() {
+        // Other gateways may be registered in the same JVM, so only the own entries are checked
+        String id = "test-" + UUID.randomUUID();
+        GatewayStatistics statistics = GatewayStatistics.register(id, 0);
+        try {
+            assertSame(statistics, GatewayStatistics.register(id, SECOND));
+            statistics.addRead(5);
+            assertEquals(5, GatewayStatistics.snapshot(2 * SECOND).totals.get(id).messagesRead);
+        } finally {
+            GatewayStatistics.unregister(id);
+        }
+        assertFalse(GatewayStatistics.snapshot(0).totals.containsKey(id));
+    }
+}
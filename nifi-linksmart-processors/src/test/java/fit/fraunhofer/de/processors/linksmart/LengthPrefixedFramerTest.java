@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LengthPrefixedFramerTest {
+
+    private final List<Message> messages = new ArrayList<>();
+
+    @Test
+    public void testInt32Frames () {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeInt32Frame(stream, "Message 1".getBytes(StandardCharsets.UTF_8));
+        writeInt32Frame(stream, new byte[0]);
+        writeInt32Frame(stream, new byte[]{0, '\n', (byte) 0xFF});
+
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.INT32), stream.toByteArray(), 1024, 1024);
+
+        assertEquals("Number of messages not correct", 3, messages.size());
+        assertEquals("Message 1", messages.get(0).toString());
+        assertEquals(0, messages.get(1).length());
+        assertArrayEquals(new byte[]{0, '\n', (byte) 0xFF}, copyOf(messages.get(2)));
+    }
+
+    @Test
+    public void testFrameSpanningSeveralReads () {
+        byte[] payload = new byte[10000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeInt32Frame(stream, payload);
+        writeInt32Frame(stream, payload);
+
+        // The frames are much larger than the buffer, and reads even split the length prefix
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.INT32), stream.toByteArray(), 64, 3);
+
+        assertEquals("Number of messages not correct", 2, messages.size());
+        assertArrayEquals(payload, copyOf(messages.get(0)));
+        assertArrayEquals(payload, copyOf(messages.get(1)));
+    }
+
+    @Test
+    public void testVarintFrames () {
+        byte[] payload = new byte[300];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(0xAC); // 300 as varint
+        stream.write(0x02);
+        stream.write(payload, 0, payload.length);
+        stream.write(0x03);
+        stream.write('a');
+        stream.write('b');
+        stream.write('c');
+
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.VARINT), stream.toByteArray(), 128, 7);
+
+        assertEquals("Number of messages not correct", 2, messages.size());
+        assertEquals(300, messages.get(0).length());
+        assertEquals("abc", messages.get(1).toString());
+    }
+
+    @Test
+    public void testNetstringFrames () {
+        byte[] stream = "12:hello world!,0:,3:abc,".getBytes(StandardCharsets.UTF_8);
+
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.NETSTRING), stream, 8, 2);
+
+        assertEquals("Number of messages not correct", 3, messages.size());
+        assertEquals("hello world!", messages.get(0).toString());
+        assertEquals("", messages.get(1).toString());
+        assertEquals("abc", messages.get(2).toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidNetstring () {
+        byte[] stream = "3:abc;".getBytes(StandardCharsets.UTF_8);
+
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.NETSTRING), stream, 64, 64);
+    }
+
+    @Test
+    public void testStreamFrameAboveThreshold () {
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeInt32Frame(stream, payload);
+        writeInt32Frame(stream, "small".getBytes(StandardCharsets.UTF_8));
+
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.INT32, 100), stream.toByteArray(), 64, 64);
+
+        assertEquals("Head of the streamed frame should be empty", 0, messages.get(0).length());
+        assertTrue("Head of the streamed frame should be continued", messages.get(0).isContinued());
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        int i = 1;
+        while (messages.get(i).isContinued()) {
+            assertTrue("Parts should not be larger than the buffer", messages.get(i).length() <= 64);
+            streamed.write(messages.get(i).array(), 0, messages.get(i).length());
+            i++;
+        }
+        streamed.write(messages.get(i).array(), 0, messages.get(i).length());
+
+        assertArrayEquals(payload, streamed.toByteArray());
+        assertEquals("Number of messages not correct", i + 2, messages.size());
+        assertEquals("small", messages.get(i + 1).toString());
+        assertFalse("Frame below the threshold should not be streamed", messages.get(i + 1).isContinued());
+    }
+
+    @Test
+    public void testStreamNetstringHoldsLastPartForTrailer () {
+        Framer framer = new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.NETSTRING, 4);
+
+        framer.frame(ByteBuffer.wrap("10:0123456789".getBytes(StandardCharsets.UTF_8)), messages::add);
+        assertEquals("Last part should only be handed off after the trailer", 1, messages.size());
+
+        framer.frame(ByteBuffer.wrap(",".getBytes(StandardCharsets.UTF_8)), messages::add);
+        assertEquals("Number of messages not correct", 2, messages.size());
+        assertEquals("0123456789", messages.get(1).toString());
+        assertFalse("Last part should not be continued", messages.get(1).isContinued());
+    }
+
+    @Test
+    public void testFrameAboveMaximumFails () {
+        // A line-oriented sub-process under INT32 framing, whose first four bytes read as a length of about 1.2 GB
+        Framer framer = new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.INT32, Integer.MAX_VALUE, 1024);
+        try {
+            framer.frame(ByteBuffer.wrap("Hello\n".getBytes(StandardCharsets.UTF_8)), messages::add);
+            fail("Frame length above the maximum should fail framing");
+        } catch (IllegalStateException e) {
+            assertTrue(messages.isEmpty());
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeInt32Frame(stream, new byte[1024]);
+        feed(new LengthPrefixedFramer(new MessagePool(8), LengthPrefixedFramer.Prefix.INT32, Integer.MAX_VALUE, 1024), stream.toByteArray(), 2048, 2048);
+        assertEquals("Frame of the maximum length should pass", 1, messages.size());
+    }
+
+    @Test
+    public void testFramesWrittenByFramingStrategyRoundTrip () {
+        byte[] payload = new byte[300];
+        for (FramingStrategy strategy : FramingStrategy.values()) {
+            messages.clear();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (int i = 0; i < 2; i++) {
+                stream.write(strategy.header(payload.length), 0, strategy.header(payload.length).length);
+                stream.write(payload, 0, payload.length);
+                stream.write(strategy.trailer(), 0, strategy.trailer().length);
+            }
+
+            feed(strategy.createFramer(new MessagePool(8), Integer.MAX_VALUE, Integer.MAX_VALUE), stream.toByteArray(), 1024, 1024);
+
+            assertEquals("Number of messages not correct for " + strategy, 2, messages.size());
+            assertArrayEquals(payload, copyOf(messages.get(1)));
+        }
+    }
+
+    // Feeds the stream to the framer the way NuProcess does: unconsumed bytes are compacted and topped up with the next read
+    private void feed(Framer framer, byte[] stream, int bufferSize, int readSize) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        int offset = 0;
+        while (offset < stream.length) {
+            int n = Math.min(Math.min(readSize, buffer.remaining()), stream.length - offset);
+            buffer.put(stream, offset, n);
+            offset += n;
+            buffer.flip();
+            framer.frame(buffer, messages::add);
+            buffer.compact();
+        }
+    }
+
+    private static void writeInt32Frame(ByteArrayOutputStream stream, byte[] payload) {
+        stream.write(payload.length >>> 24);
+        stream.write(payload.length >>> 16);
+        stream.write(payload.length >>> 8);
+        stream.write(payload.length);
+        stream.write(payload, 0, payload.length);
+    }
+
+    private static byte[] copyOf(Message message) {
+        byte[] bytes = new byte[message.length()];
+        System.arraycopy(message.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link LinksmartGateway} with the {@link LoadGenerator} for a longer time and reports throughput, latency, loss and heap
+ * growth. The tests only run if the duration in seconds is given, e.g. with -Dlinksmart.soak=3600.
+ */
+public class LinksmartGatewaySoakTest {
+
+    private static final String DURATION_PROPERTY = "linksmart.soak";
+    private static final long MAX_HEAP_GROWTH = 128L * 1024 * 1024;
+
+    private TestRunner testRunner;
+    private long durationSeconds;
+
+    @Before
+    public void init() {
+        Assume.assumeTrue("Set -D" + DURATION_PROPERTY + "=<seconds> to run the soak tests", System.getProperty(DURATION_PROPERTY) != null);
+        durationSeconds = Long.parseLong(System.getProperty(DURATION_PROPERTY));
+
+        testRunner = TestRunners.newTestRunner(LinksmartGateway.class);
+        testRunner.setProperty("MAX_MESSAGE_QUEUE_SIZE", "10000");
+        testRunner.setProperty("MAX_BATCH_SIZE", "1000");
+        testRunner.setProperty("MAX_BATCH_LATENCY", "10 ms");
+        testRunner.setProperty("OVERFLOW_POLICY", "SPILL");
+    }
+
+    @Test
+    public void testTextLines() throws Exception {
+        SoakResult result = soak(100000, 100, 1, false);
+
+        assertEquals("No message should be lost", 0, result.lost);
+        assertTrue("Heap grew by " + result.heapGrowth + " bytes", result.heapGrowth < MAX_HEAP_GROWTH);
+    }
+
+    @Test
+    public void testBurstyBinaryFrames() throws Exception {
+        testRunner.setProperty("FRAMING_STRATEGY", "INT32_LENGTH");
+
+        SoakResult result = soak(20000, 1000, 1000, true);
+
+        assertEquals("No message should be lost", 0, result.lost);
+        assertTrue("Heap grew by " + result.heapGrowth + " bytes", result.heapGrowth < MAX_HEAP_GROWTH);
+    }
+
+    private SoakResult soak(long rate, int size, int burst, boolean binary) throws Exception {
+        final long count = rate * durationSeconds;
+        testRunner.setProperty("COMMAND_LINE", loadGeneratorCommand("--rate", rate, "--size", size, "--burst", burst, "--count", count,
+                "--format", binary ? "binary" : "text"));
+
+        final long heapBefore = usedHeap();
+        final GatewayMetrics metrics = new GatewayMetrics();
+        final SoakResult result = new SoakResult();
+        long expectedSeq = 0;
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds + 60);
+        testRunner.run(1, false, true);
+        while (expectedSeq < count && System.nanoTime() < deadline) {
+            testRunner.run(1, false, false);
+
+            final long now = System.nanoTime();
+            for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS)) {
+                final byte[] content = testRunner.getContentAsByteArray(flowFile);
+                int offset = 0;
+                while (offset < content.length) {
+                    final long seq;
+                    final long sentNanos;
+                    if (binary) {
+                        final ByteBuffer message = ByteBuffer.wrap(content, offset, LoadGenerator.BINARY_HEADER_SIZE);
+                        seq = message.getLong();
+                        sentNanos = message.getLong();
+                        offset += size + 1; // Including the delimiter
+                    } else {
+                        int end = offset;
+                        while (end < content.length && content[end] != '\n') {
+                            end++;
+                        }
+                        final String[] fields = new String(content, offset, end - offset, StandardCharsets.US_ASCII).split(" ", 3);
+                        seq = Long.parseLong(fields[0]);
+                        sentNanos = Long.parseLong(fields[1]);
+                        offset = end + 1;
+                    }
+
+                    if (seq > expectedSeq) {
+                        result.lost += seq - expectedSeq;
+                    } else if (seq < expectedSeq) {
+                        result.outOfOrder++;
+                    }
+                    expectedSeq = Math.max(expectedSeq, seq + 1);
+                    result.received++;
+                    metrics.recordLatency(now - sentNanos);
+                }
+            }
+            testRunner.clearTransferState();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        testRunner.run(1, true, false);
+        testRunner.clearTransferState();
+
+        result.lost += count - expectedSeq;
+        result.heapGrowth = usedHeap() - heapBefore;
+
+        final GatewayMetrics.Snapshot latency = metrics.snapshot(1);
+        System.out.printf("Soak test with %d messages of %d bytes (%s, rate %d/s, burst %d): %.0f messages/s sustained, " +
+                        "latency p50 %d ms, p90 %d ms, p99 %d ms, max %d ms, %d lost, %d out of order, heap growth %d KB%n",
+                count, size, binary ? "binary" : "text", rate, burst, result.received / (elapsedNanos / 1e9),
+                latency.latencyMillisP50, latency.latencyMillisP90, latency.latencyMillisP99, latency.latencyMillisMax,
+                result.lost, result.outOfOrder, result.heapGrowth / 1024);
+        return result;
+    }
+
+    // The generator runs in its own JVM, from the test classes directory. The processor splits the command line at whitespace.
+    private static String loadGeneratorCommand(Object... options) throws URISyntaxException {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        final String classpath = new File(LoadGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath();
+        final StringBuilder command = new StringBuilder(java).append(" -cp ").append(classpath).append(' ').append(LoadGenerator.class.getName());
+        for (final Object option : options) {
+            command.append(' ').append(option);
+        }
+        return command.toString();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class SoakResult {
+        long received;
+        long lost;
+        long outOfOrder;
+        long heapGrowth;
+    }
+}
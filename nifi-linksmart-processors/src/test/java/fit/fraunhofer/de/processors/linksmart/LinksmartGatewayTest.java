@@ -16,16 +16,32 @@
  */
 package fit.fraunhofer.de.processors.linksmart;
 
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 
@@ -80,6 +96,32 @@ public class LinksmartGatewayTest {
 
     }
 
+    @Test
+    public void testPartialBatchFlushedAfterMaxLatency() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "5");
+        testRunner.setProperty("MAX_BATCH_LATENCY", "100 ms");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("The partial batch should be in REL_SUCCESS", 1, results.size());
+
+        String flowFileContent = new String(testRunner.getContentAsByteArray(results.get(0)));
+
+        assertEquals("Flowfile content not the same as expected. ",
+                "Msg 0 printed by Python\nMsg 1 printed by Python\nMsg 2 printed by Python",
+                flowFileContent);
+    }
+
     @Test
     public void testPrintMultipleMsgWithExactBatchSize() {
         testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
@@ -119,6 +161,186 @@ public class LinksmartGatewayTest {
 
     }
 
+    @Test
+    public void testMultipleProcessInstances() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
+        testRunner.setProperty("PROCESS_INSTANCES", "2");
+        testRunner.setProperty("MAX_BATCH_SIZE", "1");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("Messages of both instances should be in REL_SUCCESS", 6, results.size());
+    }
+
+    @Test
+    public void testLargeMsgStreamedIntoOwnFlowFile() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_large_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "3");
+        testRunner.setProperty("MAX_BATCH_LATENCY", "1 ms");
+        testRunner.setProperty("STREAMING_THRESHOLD", "10 KB");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("The large message should be in a flow file of its own", 3, results.size());
+        assertEquals("Msg 0 printed by Python", new String(testRunner.getContentAsByteArray(results.get(0))));
+        assertEquals("Large message not complete", 1000000, testRunner.getContentAsByteArray(results.get(1)).length);
+        assertEquals("Msg 2 printed by Python", new String(testRunner.getContentAsByteArray(results.get(2))));
+    }
+
+    @Test
+    public void testMsgBatchedWithoutStreamingThreshold() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_medium_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "3");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("The message should stay in the batch unless a threshold is set", 1, results.size());
+        assertEquals(2 * "Msg 0 printed by Python".length() + 20000 + 2, testRunner.getContentAsByteArray(results.get(0)).length);
+    }
+
+    @Test
+    public void testStreamingThresholdAboveIntRangeNotValid() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_one_msg_and_wait.py"));
+        testRunner.setProperty("STREAMING_THRESHOLD", "2 GB");
+        testRunner.assertNotValid();
+        testRunner.setProperty("STREAMING_THRESHOLD", "1 GB");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testParseFailureRelationshipOnlyWithRecordWriter() throws InitializationException {
+        FailingRecordWriter writer = new FailingRecordWriter();
+        testRunner.addControllerService("writer", writer);
+
+        assertFalse(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_PARSE_FAILURE));
+        testRunner.setProperty(LinksmartGateway.RECORD_WRITER, "writer");
+        assertTrue(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_PARSE_FAILURE));
+        testRunner.removeProperty(LinksmartGateway.RECORD_WRITER);
+        assertFalse(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_PARSE_FAILURE));
+    }
+
+    @Test
+    public void testMetricsRelationshipOnlyWithInterval() {
+        assertFalse(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_METRICS));
+        testRunner.setProperty(LinksmartGateway.METRICS_INTERVAL, "1 min");
+        assertTrue(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_METRICS));
+        testRunner.removeProperty(LinksmartGateway.METRICS_INTERVAL);
+        assertFalse(testRunner.getProcessor().getRelationships().contains(LinksmartGateway.REL_METRICS));
+    }
+
+    @Test
+    public void testBatchWrittenAsRecordSet() throws InitializationException {
+        MockRecordWriter writer = new MockRecordWriter("message", false);
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "3");
+        testRunner.setProperty("RECORD_WRITER", "writer");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("One flow file should be in REL_SUCCESS", 1, results.size());
+        results.get(0).assertAttributeEquals("record.count", "3");
+        results.get(0).assertAttributeExists("mime.type");
+    }
+
+    @Test
+    public void testBatchRejectedByRecordWriterRoutedToParseFailure() throws InitializationException {
+        FailingRecordWriter writer = new FailingRecordWriter();
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "3");
+        testRunner.setProperty("RECORD_WRITER", "writer");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, false, false);
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(LinksmartGateway.REL_SUCCESS, 0);
+        List<MockFlowFile> failures = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_PARSE_FAILURE);
+        assertEquals("The batch should be in REL_PARSE_FAILURE once, and not be written again", 1, failures.size());
+        failures.get(0).assertContentEquals("Msg 0 printed by Python\nMsg 1 printed by Python\nMsg 2 printed by Python");
+    }
+
+    @Test
+    public void testGzipCompression() throws IOException {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "3");
+        testRunner.setProperty("COMPRESSION", "gzip");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS);
+
+        assertEquals("One flow file should be in REL_SUCCESS", 1, results.size());
+        results.get(0).assertAttributeEquals("mime.type", "application/gzip");
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(testRunner.getContentAsByteArray(results.get(0))))) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                content.write(buffer, 0, n);
+            }
+        }
+
+        assertEquals("Decompressed content not the same as expected. ",
+                "Msg 0 printed by Python\nMsg 1 printed by Python\nMsg 2 printed by Python",
+                new String(content.toByteArray()));
+    }
+
     @Test
     public void testSpecialDelimiter() {
         testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_multiple_msg_and_wait.py"));
@@ -145,6 +367,60 @@ public class LinksmartGatewayTest {
                 flowFileContent);
     }
 
+    @Test
+    public void testStderrSentToOwnRelationship() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_stderr_and_wait.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "1");
+        testRunner.run(1, false, true);
+
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        testRunner.run(1, true, false);
+
+        testRunner.assertTransferCount(LinksmartGateway.REL_SUCCESS, 1);
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_STDERR);
+        assertEquals("One flow file should be in REL_STDERR", 1, results.size());
+        results.get(0).assertContentEquals("Warning 1 printed by Python\nWarning 2 printed by Python");
+        results.get(0).assertAttributeEquals(LinksmartGateway.INSTANCE_INDEX_ATTRIBUTE, "0");
+    }
+
+    @Test
+    public void testExitedSubprocessRestarted() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_one_msg.py"));
+        testRunner.setProperty("MAX_BATCH_SIZE", "1");
+        testRunner.setProperty("INITIAL_RESTART_BACKOFF", "0 sec");
+        testRunner.run(1, false, true);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+
+        assertTrue("The sub-process should have been restarted",
+                testRunner.getFlowFilesForRelationship(LinksmartGateway.REL_SUCCESS).size() > 1);
+    }
+
+
+    private static class FailingRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+        @Override
+        public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+            return readSchema;
+        }
+
+        @Override
+        public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, OutputStream out) throws IOException {
+            throw new IOException("Records rejected by the test");
+        }
+    }
 
     private String getResourceFilePath(String fileName) {
 
@@ -3,15 +3,22 @@ package fit.fraunhofer.de.processors.linksmart;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class LinksmartProcessHandlerTest {
 
-    private BlockingQueue<String> stdoutQueue;
+    private BlockingQueue<Message> stdoutQueue;
     private BlockingQueue<String> stderrQueue;
     private LinksmartProcessHandler handler;
 
@@ -29,7 +36,7 @@ public class LinksmartProcessHandlerTest {
         handler.onStdout(buffer, false);
 
         assertEquals("Only 1 message should be in the queue", 1, stdoutQueue.size());
-        assertEquals("Message content not the same", "Message 1", stdoutQueue.remove());
+        assertEquals("Message content not the same", "Message 1", stdoutQueue.remove().toString());
     }
 
     @Test
@@ -42,6 +49,19 @@ public class LinksmartProcessHandlerTest {
 
     }
 
+    @Test
+    public void testOnStdoutCountsReadMessagesAndBytes () {
+
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put("Message 1\nMessage 2\nMess".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        assertEquals("Number of read messages not correct", 2, handler.takeReadCount());
+        assertEquals("Only consumed bytes should be counted", 20, handler.takeReadBytes());
+        assertEquals("Counts should be reset once taken", 0, handler.takeReadCount());
+    }
+
     @Test
     public void testOnStdoutGetPartialMessage () {
 
@@ -57,8 +77,282 @@ public class LinksmartProcessHandlerTest {
         handler.onStdout(buffer, false);
 
         assertEquals("Number of message in queue not correct", 1, stdoutQueue.size());
-        assertEquals("Merged message content not the same", "Message part 1, Message part 2", stdoutQueue.remove());
+        assertEquals("Merged message content not the same", "Message part 1, Message part 2", stdoutQueue.remove().toString());
+
+    }
+
+    @Test
+    public void testOnStdoutStripCarriageReturn () {
+
+        ByteBuffer buffer = ByteBuffer.wrap("Message 1\r\nMessage 2\n".getBytes());
+        handler.onStdout(buffer, false);
+
+        assertEquals("Number of message in queue not correct", 2, stdoutQueue.size());
+        assertEquals("Message content not the same", "Message 1", stdoutQueue.remove().toString());
+        assertEquals("Message content not the same", "Message 2", stdoutQueue.remove().toString());
+    }
+
+    @Test
+    public void testOnStdoutDirectBufferWithPartialMessage () {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        buffer.put("Message 1\nMessage 2, ".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        assertEquals("Only the complete message should be consumed", 10, buffer.position());
+
+        buffer.compact();
+        buffer.put("continued\n".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        assertEquals("Number of message in queue not correct", 2, stdoutQueue.size());
+        assertEquals("Message content not the same", "Message 1", stdoutQueue.remove().toString());
+        assertEquals("Merged message content not the same", "Message 2, continued", stdoutQueue.remove().toString());
+    }
+
+    @Test
+    public void testOverflowDropNewest () {
+        stdoutQueue = new LinkedBlockingQueue<>(2);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, new MessagePool(2), OverflowPolicy.DROP_NEWEST, null);
+
+        handler.onStdout(ByteBuffer.wrap("Message 1\nMessage 2\nMessage 3\n".getBytes()), false);
+
+        assertEquals("Number of message in queue not correct", 2, stdoutQueue.size());
+        assertEquals("Oldest message should be kept", "Message 1", stdoutQueue.remove().toString());
+        assertEquals("Number of dropped message not correct", 1, handler.takeDroppedCount());
+    }
+
+    @Test
+    public void testOverflowDropOldest () {
+        stdoutQueue = new LinkedBlockingQueue<>(2);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, new MessagePool(2), OverflowPolicy.DROP_OLDEST, null);
+
+        handler.onStdout(ByteBuffer.wrap("Message 1\nMessage 2\nMessage 3\n".getBytes()), false);
+
+        assertEquals("Number of message in queue not correct", 2, stdoutQueue.size());
+        assertEquals("Oldest message should be dropped", "Message 2", stdoutQueue.remove().toString());
+        assertEquals("Number of dropped message not correct", 1, handler.takeDroppedCount());
+    }
+
+    @Test
+    public void testOverflowSpill () throws IOException {
+        MessagePool pool = new MessagePool(2);
+        stdoutQueue = new LinkedBlockingQueue<>(1);
+        try (MessageSpill spill = new MessageSpill(null, Long.MAX_VALUE)) {
+            handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, pool, OverflowPolicy.SPILL, spill);
+
+            handler.onStdout(ByteBuffer.wrap("Message 1\nMessage 2\nMessage 3\n".getBytes()), false);
+
+            assertEquals("Number of message in queue not correct", 1, stdoutQueue.size());
+            assertEquals("Number of spilled message not correct", 2, spill.size());
+
+            assertEquals("Message content not the same", "Message 1", stdoutQueue.remove().toString());
+            handler.onStdout(ByteBuffer.wrap("Message 4\n".getBytes()), false);
+            assertEquals("New message should be spilled while the spill is not empty", 3, spill.size());
+
+            assertEquals("Message content not the same", "Message 2", spill.poll(pool).toString());
+            assertEquals("Message content not the same", "Message 3", spill.poll(pool).toString());
+            assertEquals("Message content not the same", "Message 4", spill.poll(pool).toString());
+            assertTrue("Spill should be empty", spill.isEmpty());
+            assertEquals("Number of dropped message not correct", 0, handler.takeDroppedCount());
+        }
+    }
+
+    @Test
+    public void testOverflowSpillFullDropsNewest () throws IOException {
+        MessagePool pool = new MessagePool(2);
+        stdoutQueue = new LinkedBlockingQueue<>(1);
+        // Room for two records of a 12 byte header and 9 bytes of message each, one per segment
+        try (MessageSpill spill = new MessageSpill(null, 42, 1)) {
+            handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, pool, OverflowPolicy.SPILL, spill);
+
+            handler.onStdout(ByteBuffer.wrap("Message 1\nMessage 2\nMessage 3\nMessage 4\n".getBytes()), false);
+
+            assertEquals("Number of spilled message not correct", 2, spill.size());
+            assertEquals("Number of dropped message not correct", 1, handler.takeDroppedCount());
+
+            stdoutQueue.clear();
+            assertEquals("Message content not the same", "Message 2", spill.poll(pool).toString());
+            handler.onStdout(ByteBuffer.wrap("Message 5\n".getBytes()), false);
+            assertEquals("Space read back should be taken again", 2, spill.size());
+            assertEquals("Message content not the same", "Message 3", spill.poll(pool).toString());
+            assertEquals("Message content not the same", "Message 5", spill.poll(pool).toString());
+        }
+    }
+
+    @Test
+    public void testSpillSegmentsDeletedWhileReadBack () throws IOException {
+        MessagePool pool = new MessagePool(2);
+        File directory = Files.createTempDirectory("spill").toFile();
+        // One record per segment
+        try (MessageSpill spill = new MessageSpill(directory, Long.MAX_VALUE, 1)) {
+            for (int i = 1; i <= 3; i++) {
+                Message message = pool.acquire();
+                byte[] bytes = ("Message " + i).getBytes();
+                message.set(bytes, 0, bytes.length);
+                assertTrue(spill.append(message));
+                message.release();
+            }
+            assertEquals("Number of segments not correct", 3, directory.listFiles().length);
+
+            assertEquals("Message content not the same", "Message 1", spill.poll(pool).toString());
+            assertEquals("A segment should be deleted once it has been read", 2, directory.listFiles().length);
+            assertEquals("Message content not the same", "Message 2", spill.poll(pool).toString());
+            assertEquals("Message content not the same", "Message 3", spill.poll(pool).toString());
+            assertEquals("No segment should be left once the spill is empty", 0, directory.listFiles().length);
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testOverflowBlockUntilQueueDrained () {
+        stdoutQueue = new LinkedBlockingQueue<>(2);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, new MessagePool(4), OverflowPolicy.BLOCK, null);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put("Message 1\nMessage 2\nMessage 3\n".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+        assertFalse("Every message read should be taken", buffer.hasRemaining());
+
+        // Like NuProcess, which passes in the bytes left over together with the next ones read
+        buffer.compact();
+        buffer.put("Message 4\n".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+        assertEquals("Reading should be paused while the queue is full", "Message 4\n".length(), buffer.remaining());
+
+        stdoutQueue.clear();
+        handler.onStdout(buffer, false);
+
+        assertEquals("Message content not the same", "Message 3", stdoutQueue.remove().toString());
+        assertEquals("Message content not the same", "Message 4", stdoutQueue.remove().toString());
+        assertEquals("Number of paused reads not correct", 1, handler.takePausedCount());
+        assertEquals("No message should be dropped", 0, handler.takeDroppedCount());
+    }
+
+    @Test
+    public void testOverflowBlockDropsOnceReadBufferFull () {
+        stdoutQueue = new LinkedBlockingQueue<>(1);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, new MessagePool(4), OverflowPolicy.BLOCK, null);
+
+        handler.onStdout(ByteBuffer.wrap("Message 1\nMessage 2\n".getBytes()), false);
+        // NuProcess cannot read any further once its buffer is full, so the bytes have to be taken
+        ByteBuffer full = ByteBuffer.wrap("Message 3\n".getBytes());
+        handler.onStdout(full, false);
+
+        assertFalse("A full buffer must be consumed", full.hasRemaining());
+        assertEquals("Number of dropped message not correct", 1, handler.takeDroppedCount());
+
+        assertEquals("Message content not the same", "Message 1", stdoutQueue.remove().toString());
+        ByteBuffer stdin = ByteBuffer.allocate(16);
+        handler.onStdinReady(stdin);
+        assertEquals("Held message should be handed off once resumed", "Message 2", stdoutQueue.remove().toString());
+        assertFalse("Nothing should be written to stdin", stdin.hasRemaining());
+    }
+
+    @Test
+    public void testOnStdoutStreamLineLargerThanBuffer () throws InterruptedException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put("0123456789abcdef".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        assertFalse("A full buffer must be consumed", buffer.hasRemaining());
+        assertTrue("Handler should be streaming", handler.isStreaming());
+        Message head = stdoutQueue.remove();
+        assertNotNull("Head of a streamed message should have a stream", head.getStream());
+
+        buffer.clear();
+        buffer.put("ghij\r\nMsg 2\n".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        assertFalse("Handler should not be streaming anymore", handler.isStreaming());
+        StringBuilder content = new StringBuilder(head.toString());
+        Message part;
+        do {
+            part = head.getStream().poll(1, TimeUnit.SECONDS);
+            content.append(part.toString());
+        } while (part.isContinued());
+
+        assertEquals("Streamed message content not the same", "0123456789abcdefghij", content.toString());
+        assertEquals("Message after the streamed one not the same", "Msg 2", stdoutQueue.remove().toString());
+    }
+
+    @Test
+    public void testOnStdoutStreamLineAboveThreshold () throws InterruptedException {
+        MessagePool pool = new MessagePool(8);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, pool, new LineFramer(pool, 4), OverflowPolicy.DROP_NEWEST, null);
+
+        handler.onStdout(ByteBuffer.wrap("abc\nlong line\n".getBytes()), false);
+
+        assertEquals("Number of message in queue not correct", 2, stdoutQueue.size());
+        assertEquals("Message content not the same", "abc", stdoutQueue.remove().toString());
+        Message head = stdoutQueue.remove();
+        assertNotNull("Line above the threshold should be streamed", head.getStream());
+        Message part = head.getStream().poll(1, TimeUnit.SECONDS);
+        assertEquals("Streamed message content not the same", "long line", part.toString());
+        assertFalse("Streamed message should be complete", part.isContinued());
+    }
+
+    @Test
+    public void testOnStdoutClosedAbortsStream () {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.put("01234567".getBytes());
+        buffer.flip();
+        handler.onStdout(buffer, false);
+
+        Message head = stdoutQueue.remove();
+        handler.onStdout(ByteBuffer.allocate(0), true);
+
+        assertTrue("Incomplete message should be aborted", head.getStream().isAborted());
+        assertFalse("Handler should not be streaming anymore", handler.isStreaming());
+    }
+
+    @Test
+    public void testOnStderrFramesLines () {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put("Warning 1\r\nWarning 2\nWarn".getBytes());
+        buffer.flip();
+        handler.onStderr(buffer, false);
+
+        assertEquals("Number of stderr lines not correct", 2, stderrQueue.size());
+        assertEquals("Line content not the same", "Warning 1", stderrQueue.remove());
+        assertEquals("Line content not the same", "Warning 2", stderrQueue.remove());
+        assertEquals("Partial line should be left in the buffer", "Warn".length(), buffer.remaining());
+
+        handler.onStderr(buffer, true);
+
+        assertEquals("Partial line should be emitted once stderr is closed", "Warn", stderrQueue.remove());
+    }
+
+    @Test
+    public void testOnStderrCountsDroppedLines () {
+        handler = new LinksmartProcessHandler(stdoutQueue, new LinkedBlockingQueue<>(1));
+
+        handler.onStderr(ByteBuffer.wrap("Warning 1\nWarning 2\n".getBytes()), false);
+
+        assertEquals("Lines that do not fit into the queue should be counted", 1, handler.takeStderrDroppedCount());
+    }
+
+    @Test
+    public void testInactiveHandlerDiscardsUntilActivated () {
+        MessagePool pool = new MessagePool(8);
+        handler = new LinksmartProcessHandler(stdoutQueue, stderrQueue, pool, new LineFramer(pool, 4), OverflowPolicy.DROP_NEWEST, null);
+        handler.setActive(false);
+
+        handler.onStdout(ByteBuffer.wrap("Msg 1\nlonger".getBytes()), false);
+        handler.setActive(true);
+        handler.onStdout(ByteBuffer.wrap(" line\nMsg2\n".getBytes()), false);
 
+        assertEquals("Only messages that started after activation should be in the queue", 1, stdoutQueue.size());
+        assertEquals("Message content not the same", "Msg2", stdoutQueue.remove().toString());
+        assertEquals("Discarded messages should not be counted", 1, handler.takeReadCount());
     }
 
 }
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LinksmartServiceBulkRegisterTest {
+
+    private TestRunner testRunner;
+    private FakeServiceCatalog catalog;
+
+    @Before
+    public void init() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(LinksmartServiceBulkRegister.class);
+        catalog = new FakeServiceCatalog();
+        // Answers after a short delay, so that requests are on their way at the same time
+        catalog.responseDelayMillis = 20;
+        catalog.putFailure = body -> {
+            if (body.contains("interrupt")) {
+                // Like the processor being stopped while the request is on its way
+                Thread.currentThread().interrupt();
+            }
+            if (body.contains("\"id\":\"invalid\"")) {
+                // Like a request which could not even be built
+                return new IllegalArgumentException("Illegal character in path");
+            }
+            final int status = body.contains("reject") ? 400 : body.contains("unavailable") ? 503 : 200;
+            return status < 300 ? null : new HttpResponseException(status, "Unexpected response status: " + status);
+        };
+        testRunner.addControllerService("catalog", catalog);
+        testRunner.enableControllerService(catalog);
+        testRunner.setProperty(LinksmartServiceBulkRegister.SERVICE_CATALOG, "catalog");
+    }
+
+    @After
+    public void shutdown() {
+        catalog.shutdown();
+    }
+
+    @Test
+    public void testEntryRegistered() {
+        testRunner.enqueue("{\"id\": \"device-1\", \"name\": \"_device._tcp\"}");
+        testRunner.enqueue("{\"name\": \"_device._tcp\"}");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceBulkRegister.REL_SUCCESS, 2);
+        List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_SUCCESS);
+        flowFiles.get(0).assertAttributeEquals(LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, "device-1");
+        flowFiles.get(1).assertAttributeEquals(LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, "assigned");
+    }
+
+    @Test
+    public void testIdTakenFromProperty() {
+        testRunner.setProperty(LinksmartServiceBulkRegister.SERVICE_ID, "${device}");
+        testRunner.enqueue("{\"name\": \"_device._tcp\"}", Collections.singletonMap("device", "device-2"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceBulkRegister.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_SUCCESS).get(0)
+                .assertAttributeEquals(LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, "device-2");
+        assertTrue("The ID should be written into the entry", catalog.bodies.get(0).contains("\"id\":\"device-2\""));
+    }
+
+    @Test
+    public void testEveryEntryOfArrayRouted() {
+        testRunner.enqueue("[{\"id\": \"device-1\"}, {\"id\": \"device-2\", \"name\": \"reject\"}, {\"id\": \"device-3\", \"name\": \"unavailable\"}]");
+        testRunner.run();
+
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_ORIGINAL, 1);
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_FAILURE, 1);
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_RETRY, 1);
+        MockFlowFile success = testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_SUCCESS).get(0);
+        success.assertAttributeEquals(LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, "device-1");
+        success.assertContentEquals("{\"id\":\"device-1\"}");
+        assertTrue(testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_RETRY).get(0).isPenalized());
+        testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_FAILURE).get(0)
+                .assertAttributeExists(LinksmartServiceBulkRegister.ERROR_ATTRIBUTE);
+    }
+
+    @Test
+    public void testLocalErrorRoutedToFailure() {
+        testRunner.enqueue("{\"id\": \"invalid\"}");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceBulkRegister.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_FAILURE).get(0)
+                .assertAttributeEquals(LinksmartServiceBulkRegister.ERROR_ATTRIBUTE, "Illegal character in path");
+    }
+
+    @Test
+    public void testRequestsSentBeforeInterruptRouted() {
+        testRunner.enqueue("{\"name\": \"interrupt\"}");
+        testRunner.enqueue("{\"name\": \"_device._tcp\"}");
+        testRunner.enqueue("[{\"name\": \"_device._tcp\"}]");
+        testRunner.run();
+
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(LinksmartServiceBulkRegister.REL_SUCCESS).get(0)
+                .assertAttributeEquals(LinksmartServiceBulkRegister.SERVICE_ID_ATTRIBUTE, "assigned");
+        assertEquals("The entries which were not sent should be left in the queue", 2, testRunner.getQueueSize().getObjectCount());
+        assertEquals("The sent entry should not be sent again", 1, catalog.bodies.size());
+    }
+
+    @Test
+    public void testEntryDeleted() {
+        testRunner.setProperty(LinksmartServiceBulkRegister.OPERATION, "${operation}");
+        testRunner.enqueue("{\"id\": \"device-1\"}", Collections.singletonMap("operation", "delete"));
+        testRunner.enqueue("{\"name\": \"_device._tcp\"}", Collections.singletonMap("operation", "delete"));
+        testRunner.enqueue("{\"id\": \"device-1\"}", Collections.singletonMap("operation", "update"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(LinksmartServiceBulkRegister.REL_FAILURE, 2);
+        assertEquals(Collections.singletonList("device-1"), catalog.deletedIds);
+    }
+
+    @Test
+    public void testInvalidContentRoutedToFailure() {
+        testRunner.enqueue("{\"id\": ");
+        testRunner.enqueue("\"device\"");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceBulkRegister.REL_FAILURE, 2);
+        assertEquals(0, catalog.maxInFlight.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsBounded() {
+        testRunner.setProperty(LinksmartServiceBulkRegister.MAX_CONCURRENT_REQUESTS, "3");
+        for (int i = 0; i < 20; i++) {
+            testRunner.enqueue("{\"id\": \"device-" + i + "\"}");
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceBulkRegister.REL_SUCCESS, 20);
+        assertEquals("Requests should be on their way at the same time, but no more than allowed", 3, catalog.maxInFlight.get());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class LinksmartServiceLookupTest {
+
+    private static final String ENTRY = "{\"id\": \"%s\", \"name\": \"_nifi._tcp\", \"apis\": {\"mqtt\": \"tcp://broker:1883\"}, " +
+            "\"meta\": {\"ls_codename\": \"DGW\", \"rates\": [1, 2]}, \"ttl\": 120}";
+
+    private TestRunner testRunner;
+    private FakeServiceCatalog catalog;
+
+    @Before
+    public void init() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(LinksmartServiceLookup.class);
+        catalog = new FakeServiceCatalog();
+        catalog.entries.put("gateway", String.format(ENTRY, "gateway"));
+        catalog.entries.put("gateway-backup", String.format(ENTRY, "gateway-backup"));
+        testRunner.addControllerService("catalog", catalog);
+        testRunner.enableControllerService(catalog);
+        testRunner.setProperty(LinksmartServiceLookup.SERVICE_CATALOG, "catalog");
+    }
+
+    @Test
+    public void testAttributesWrittenFromCachedEntry() {
+        testRunner.setProperty(LinksmartServiceLookup.SERVICE_ID, "${service}");
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue("Dummy flow file", Collections.singletonMap("service", "gateway"));
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceLookup.REL_SUCCESS, 3);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(LinksmartServiceLookup.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_ID_ATTRIBUTE, "gateway");
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_NAME_ATTRIBUTE, "_nifi._tcp");
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_APIS_PREFIX + "mqtt", "tcp://broker:1883");
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_META_PREFIX + "ls_codename", "DGW");
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_META_PREFIX + "rates", "[1,2]");
+        assertEquals("The entry should be requested only once", 1, catalog.lookups.get());
+    }
+
+    @Test
+    public void testNotFoundCached() {
+        testRunner.setProperty(LinksmartServiceLookup.SERVICE_ID, "unknown");
+        testRunner.enqueue("Dummy flow file");
+        testRunner.enqueue("Dummy flow file");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceLookup.REL_NOT_FOUND, 2);
+        assertEquals("The absence of the entry should be cached", 1, catalog.lookups.get());
+    }
+
+    @Test
+    public void testFilterLookup() {
+        testRunner.setProperty(LinksmartServiceLookup.FILTER_PATH, "meta.ls_codename");
+        testRunner.setProperty(LinksmartServiceLookup.FILTER_VALUE, "DGW");
+        testRunner.enqueue("Dummy flow file");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartServiceLookup.REL_SUCCESS, 1);
+        MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(LinksmartServiceLookup.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_ID_ATTRIBUTE, "gateway");
+        flowFile.assertAttributeEquals(LinksmartServiceLookup.SERVICE_COUNT_ATTRIBUTE, "2");
+    }
+
+    @Test
+    public void testEitherIdOrFilter() {
+        testRunner.assertNotValid();
+        testRunner.setProperty(LinksmartServiceLookup.SERVICE_ID, "gateway");
+        testRunner.setProperty(LinksmartServiceLookup.FILTER_PATH, "name");
+        testRunner.setProperty(LinksmartServiceLookup.FILTER_VALUE, "_nifi._tcp");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testEntryKeptNoLongerThanItsTtl() {
+        assertEquals(TimeUnit.SECONDS.toNanos(10), LinksmartServiceLookup.expiryNanos(TimeUnit.MINUTES.toNanos(1), TimeUnit.SECONDS.toNanos(10))
+                .applyAsLong(Collections.<ServiceRegister.ServiceEntry>emptyList()));
+        assertEquals(TimeUnit.SECONDS.toNanos(30), LinksmartServiceLookup.expiryNanos(TimeUnit.MINUTES.toNanos(1), TimeUnit.SECONDS.toNanos(10))
+                .applyAsLong(Collections.singletonList(ServiceRegister.parseServiceEntry("{\"id\": \"gateway\", \"ttl\": 30}"))));
+    }
+
+}
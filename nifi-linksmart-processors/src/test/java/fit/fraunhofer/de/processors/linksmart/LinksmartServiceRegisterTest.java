@@ -23,6 +23,8 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -30,8 +32,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -44,11 +49,16 @@ public class LinksmartServiceRegisterTest {
 
 
     @Before
-    public void init() {
+    public void init() throws InitializationException {
 
         testRunner = TestRunners.newTestRunner(LinksmartServiceRegister.class);
 
         url = "http://iot-linksmart.iot:8082/";
+        StandardLinksmartServiceCatalogService catalogService = new StandardLinksmartServiceCatalogService();
+        testRunner.addControllerService("catalog", catalogService);
+        testRunner.setProperty(catalogService, StandardLinksmartServiceCatalogService.SC_URL, url);
+        testRunner.enableControllerService(catalogService);
+        testRunner.setProperty(LinksmartServiceRegister.SERVICE_CATALOG, "catalog");
         body = "{" +
                 "\"description\": \"Nifi Test\"," +
                 "\"name\": \"_nifi._tcp\"," +
@@ -72,7 +82,6 @@ public class LinksmartServiceRegisterTest {
 
     @Test
     public void testFlowFileContent() {
-        testRunner.setProperty(LinksmartServiceRegister.SC_URL, url);
         testRunner.setProperty(LinksmartServiceRegister.ID, "nifi_test");
         testRunner.setProperty(LinksmartServiceRegister.BODY, body);
         testRunner.enqueue("Dummy flow file");
@@ -84,30 +93,27 @@ public class LinksmartServiceRegisterTest {
     }
 
     @Test
-    public void testRegisterUsingBodyWithId() throws IOException {
-        testRunner.setProperty(LinksmartServiceRegister.SC_URL, url);
+    public void testRegisterUsingBodyWithId() throws Exception {
         testRunner.setProperty(LinksmartServiceRegister.ID, "nifi_test");
         testRunner.setProperty(LinksmartServiceRegister.BODY, body);
         testRunner.run(1, false, true);
 
-        assertTrue(checkServiceExistence("nifi_test"));
+        assertTrue(eventually(() -> checkServiceExistence("nifi_test")));
 
     }
 
     @Test
-    public void testRegisterUsingBodyWithoutId() throws IOException {
+    public void testRegisterUsingBodyWithoutId() throws Exception {
         // TODO: test body without ID
-        testRunner.setProperty(LinksmartServiceRegister.SC_URL, url);
         testRunner.setProperty(LinksmartServiceRegister.ID, "");
         testRunner.setProperty(LinksmartServiceRegister.BODY, body);
         testRunner.run(1, false, true);
 
-        assertTrue(checkServiceExistenceWithoutId("_nifi._tcp"));
+        assertTrue(eventually(() -> checkServiceExistenceWithoutId("_nifi._tcp")));
     }
 
     @Test
     public void testDeregister() throws IOException {
-        testRunner.setProperty(LinksmartServiceRegister.SC_URL, url);
         testRunner.setProperty(LinksmartServiceRegister.ID, "nifi_test");
         testRunner.setProperty(LinksmartServiceRegister.BODY, body);
         testRunner.run(1);
@@ -116,6 +122,58 @@ public class LinksmartServiceRegisterTest {
 
     }
 
+    @Test
+    public void testTtlWrittenIntoBody() {
+        Map<?, ?> entry = new Gson().fromJson(LinksmartServiceRegister.withTtl(body, 60), Map.class);
+        assertEquals(60.0, entry.get("ttl"));
+        assertEquals("Nifi Test", entry.get("description"));
+        assertEquals("Body which is no JSON object should be kept", "", LinksmartServiceRegister.withTtl("", 60));
+    }
+
+    @Test
+    public void testStatisticsMergedIntoMeta() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put(GatewayStatisticsPublisher.MESSAGES_PER_SECOND, 12.5);
+        values.put(GatewayStatisticsPublisher.QUEUE_DEPTH, 3);
+        Map<?, ?> entry = new Gson().fromJson(LinksmartServiceRegister.withMeta(body, values), Map.class);
+        Map<?, ?> meta = (Map<?, ?>) entry.get("meta");
+        assertEquals(12.5, meta.get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+        assertEquals(3.0, meta.get(GatewayStatisticsPublisher.QUEUE_DEPTH));
+        assertEquals("Existing meta data should be kept", "DGW", meta.get("ls_codename"));
+
+        entry = new Gson().fromJson(LinksmartServiceRegister.withMeta("{\"name\": \"x\"}", values), Map.class);
+        assertEquals(12.5, ((Map<?, ?>) entry.get("meta")).get(GatewayStatisticsPublisher.MESSAGES_PER_SECOND));
+    }
+
+
+    @Test
+    public void testAssignedIdStoredAndReused() throws InitializationException, IOException {
+        FakeServiceCatalog catalog = new FakeServiceCatalog();
+        testRunner.addControllerService("fake", catalog);
+        testRunner.enableControllerService(catalog);
+        testRunner.setProperty(LinksmartServiceRegister.SERVICE_CATALOG, "fake");
+        testRunner.setProperty(LinksmartServiceRegister.ID, "");
+        testRunner.setProperty(LinksmartServiceRegister.BODY, body);
+
+        testRunner.run(1);
+        assertNull("Without a stored ID, the Service Catalog should assign one", catalog.registeredIds.get(0));
+        testRunner.getStateManager().assertStateEquals(LinksmartServiceRegister.ASSIGNED_ID_STATE_KEY, FakeServiceCatalog.ASSIGNED_ID, Scope.LOCAL);
+
+        testRunner.run(1);
+        assertEquals("The stored ID should be registered again", FakeServiceCatalog.ASSIGNED_ID, catalog.registeredIds.get(1));
+    }
+
+    // Registration completes in the background, after the processor has been triggered
+    private static boolean eventually(Callable<Boolean> check) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!check.call()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        return true;
+    }
 
     private boolean checkServiceExistence(String id) throws IOException {
         try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
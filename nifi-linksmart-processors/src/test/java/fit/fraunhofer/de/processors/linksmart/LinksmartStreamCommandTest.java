@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LinksmartStreamCommandTest {
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        testRunner = TestRunners.newTestRunner(LinksmartStreamCommand.class);
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("echo_upper_case.py"));
+    }
+
+    @Test
+    public void testAnswersMatchedToFlowFilesInOrder() {
+        testRunner.setProperty("MAX_IN_FLIGHT", "2");
+        testRunner.enqueue("msg 0");
+        testRunner.enqueue("msg 1");
+        testRunner.enqueue("msg 2");
+
+        // The first answer takes as long as the interpreter needs to start up, so the last FlowFile may be left for the next trigger
+        testRunner.run(3, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartStreamCommand.REL_SUCCESS, 3);
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartStreamCommand.REL_SUCCESS);
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).assertContentEquals("MSG " + i);
+        }
+    }
+
+    @Test
+    public void testNoAnswerRoutedToFailure() {
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_one_msg_and_wait.py"));
+        testRunner.setProperty("RESPONSE_TIMEOUT", "1 sec");
+        testRunner.setProperty("FRAMING_STRATEGY", "INT32_LENGTH");
+        testRunner.enqueue("msg 0");
+
+        testRunner.run(1, true, true);
+
+        assertEquals("FlowFile without an answer should be in REL_FAILURE", 1,
+                testRunner.getFlowFilesForRelationship(LinksmartStreamCommand.REL_FAILURE).size());
+    }
+
+    @Test
+    public void testLineBreakRoutedToFailure() {
+        testRunner.enqueue("msg 0\n");
+        testRunner.enqueue("msg\n1");
+        testRunner.enqueue("msg 2");
+
+        testRunner.run(3, true, true);
+
+        testRunner.assertTransferCount(LinksmartStreamCommand.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(LinksmartStreamCommand.REL_FAILURE).get(0).assertContentEquals("msg\n1");
+        List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(LinksmartStreamCommand.REL_SUCCESS);
+        assertEquals("The trailing line break should be left out rather than causing a second answer", 2, results.size());
+        results.get(0).assertContentEquals("MSG 0");
+        results.get(1).assertContentEquals("MSG 2");
+    }
+
+    @Test
+    public void testAnswerAboveMaximumSizeRoutedToFailure() {
+        // The printed text is taken for a length prefix of about 1.3 GB
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_one_msg_and_wait.py"));
+        testRunner.setProperty("FRAMING_STRATEGY", "INT32_LENGTH");
+        testRunner.setProperty("RESPONSE_TIMEOUT", "1 min");
+        testRunner.setProperty("MAX_ANSWER_SIZE", "1 KB");
+        testRunner.enqueue("msg 0");
+
+        final long start = System.nanoTime();
+        testRunner.run(1, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartStreamCommand.REL_FAILURE, 1);
+        assertTrue("The invalid answer should fail the FlowFile before the sub-process exits",
+                System.nanoTime() - start < TimeUnit.SECONDS.toNanos(8));
+    }
+
+    @Test
+    public void testAbortedAnswerRoutedToFailure() {
+        // The answer is too large to be held at once, so it is streamed, and the stream ends without the line break
+        testRunner.setProperty("COMMAND_LINE", "python " + getResourceFilePath("print_partial_answer_and_exit.py"));
+        testRunner.setProperty("RESPONSE_TIMEOUT", "10 sec");
+        testRunner.enqueue("msg 0");
+
+        testRunner.run(1, true, true);
+
+        testRunner.assertAllFlowFilesTransferred(LinksmartStreamCommand.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(LinksmartStreamCommand.REL_FAILURE).get(0).assertContentEquals("msg 0");
+    }
+
+    private String getResourceFilePath(String fileName) {
+
+        String relPath = "src\\test\\resources\\" + fileName;
+        return (new File(relPath)).getAbsolutePath();
+
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sub-process for load tests of {@link LinksmartGateway}, which writes messages of a fixed size to stdout at a fixed rate.
+ * Every message starts with its sequence number and the System.nanoTime() at which it was written. On Linux that clock is
+ * shared by all processes, so the receiving side can compute latencies and detect lost messages.
+ * <p>
+ * Options:
+ * <ul>
+ *     <li>--rate: messages per second, 0 for as fast as possible (default 1000)</li>
+ *     <li>--size: bytes per message, without the line break or length prefix (default 100)</li>
+ *     <li>--burst: messages written back to back before pausing, to simulate bursty sources (default 1)</li>
+ *     <li>--count: number of messages, 0 for no limit (default 0)</li>
+ *     <li>--format: "text" for lines of printable characters, or "binary" for random bytes framed with a 4-byte big-endian
+ *     length prefix (default text)</li>
+ *     <li>--seed: seed of the padding bytes, so that runs are reproducible (default 0)</li>
+ * </ul>
+ * Once all messages are written the generator stays alive until it is killed, since the processor treats the end of its
+ * sub-process as an error.
+ */
+public final class LoadGenerator {
+
+    static final int BINARY_HEADER_SIZE = 16; // Sequence number and timestamp, both as 8-byte longs
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long rate = 1000;
+        int size = 100;
+        int burst = 1;
+        long count = 0;
+        boolean binary = false;
+        long seed = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rate":
+                    rate = Long.parseLong(args[i + 1]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--burst":
+                    burst = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                case "--count":
+                    count = Long.parseLong(args[i + 1]);
+                    break;
+                case "--format":
+                    binary = "binary".equals(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (binary && size < BINARY_HEADER_SIZE) {
+            throw new IllegalArgumentException("Binary messages need at least " + BINARY_HEADER_SIZE + " bytes");
+        }
+
+        final byte[] padding = new byte[size];
+        final Random random = new Random(seed);
+        if (binary) {
+            random.nextBytes(padding);
+        } else {
+            for (int i = 0; i < size; i++) {
+                padding[i] = (byte) ('a' + random.nextInt(26));
+            }
+        }
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+        final ByteBuffer message = ByteBuffer.allocate(size + 4 + 1);
+        final long burstNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(burst) / rate : 0;
+
+        long next = System.nanoTime();
+        long seq = 0;
+        while (count == 0 || seq < count) {
+            for (int i = 0; i < burst && (count == 0 || seq < count); i++, seq++) {
+                message.clear();
+                if (binary) {
+                    message.putInt(size).putLong(seq).putLong(System.nanoTime());
+                    message.put(padding, BINARY_HEADER_SIZE, size - BINARY_HEADER_SIZE);
+                } else {
+                    final byte[] header = (seq + " " + System.nanoTime() + " ").getBytes(StandardCharsets.US_ASCII);
+                    final int headerLength = Math.min(header.length, size);
+                    message.put(header, 0, headerLength);
+                    message.put(padding, headerLength, size - headerLength);
+                    message.put((byte) '\n');
+                }
+                out.write(message.array(), 0, message.position());
+            }
+            out.flush();
+
+            // A generator that falls behind catches up without pausing, so the average rate is kept
+            if (burstNanos > 0) {
+                next += burstNanos;
+                final long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+        }
+
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
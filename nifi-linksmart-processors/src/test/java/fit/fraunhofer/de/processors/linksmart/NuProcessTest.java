@@ -12,10 +12,11 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class NuProcessTest {
 
-    private BlockingQueue<String> stdoutQueue;
+    private BlockingQueue<Message> stdoutQueue;
     private BlockingQueue<String> stderrQueue;
 
     @Before
@@ -42,7 +43,7 @@ public class NuProcessTest {
         process.destroy(false);
 
         assertEquals("Only 1 message should be in the queue", 1, stdoutQueue.size());
-        assertEquals("Message content not the same", "Python printed 1 message", stdoutQueue.remove());
+        assertEquals("Message content not the same", "Python printed 1 message", stdoutQueue.remove().toString());
 
     }
 
@@ -84,7 +85,12 @@ public class NuProcessTest {
 
         process.destroy(false);
 
-        assertEquals("Only 1 message should be in the queue", 1, stderrQueue.size());
+        assertTrue("Every line of the traceback should be in the queue", stderrQueue.size() > 1);
+        String lastLine = null;
+        for (String line : stderrQueue) {
+            lastLine = line;
+        }
+        assertTrue("Last line should name the exception", lastLine.startsWith("ZeroDivisionError"));
 
     }
 
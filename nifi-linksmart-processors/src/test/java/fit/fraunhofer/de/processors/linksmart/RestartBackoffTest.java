@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestartBackoffTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testDelayDoublesUpToMaximum () {
+        RestartBackoff backoff = new RestartBackoff(SECOND, 3 * SECOND, 10, 60 * SECOND);
+        backoff.started(0);
+
+        assertEquals(SECOND, backoff.scheduleRestart(0));
+        assertFalse("Restart should not be due before the delay", backoff.isRestartDue(SECOND / 2));
+        assertTrue("Restart should be due after the delay", backoff.isRestartDue(SECOND));
+        backoff.started(SECOND);
+
+        assertEquals(2 * SECOND, backoff.scheduleRestart(SECOND));
+        backoff.started(3 * SECOND);
+        assertEquals("Delay should be capped", 3 * SECOND, backoff.scheduleRestart(3 * SECOND));
+    }
+
+    @Test
+    public void testDelayStartsOverAfterStableRun () {
+        RestartBackoff backoff = new RestartBackoff(SECOND, 3 * SECOND, 10, 60 * SECOND);
+        backoff.started(0);
+        backoff.scheduleRestart(0);
+        backoff.started(SECOND);
+        backoff.scheduleRestart(SECOND);
+        backoff.started(3 * SECOND);
+
+        assertEquals("Delay should start over", SECOND, backoff.scheduleRestart(10 * SECOND));
+    }
+
+    @Test
+    public void testRestartRateLimitedWithinWindow () {
+        RestartBackoff backoff = new RestartBackoff(0, 0, 2, 10 * SECOND);
+        backoff.recordRestart(0);
+        backoff.recordRestart(SECOND);
+
+        assertTrue("Third restart within the window should be refused", backoff.isRateExceeded(2 * SECOND));
+        assertFalse("Restart should be allowed once the first one left the window", backoff.isRateExceeded(10 * SECOND));
+        assertFalse("Restarts should be disabled with a maximum of 0", new RestartBackoff(0, 0, 0, SECOND).isEnabled());
+    }
+}
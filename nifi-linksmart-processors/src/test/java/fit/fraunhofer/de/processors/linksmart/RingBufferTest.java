@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test
+    public void testSpscCapacityAndOrder () {
+        checkCapacityAndOrder(new SpscRingBuffer<>(3));
+    }
+
+    @Test
+    public void testMpscCapacityAndOrder () {
+        checkCapacityAndOrder(new MpscRingBuffer<>(3));
+    }
+
+    @Test
+    public void testSpscDrainTo () {
+        checkDrainTo(new SpscRingBuffer<>(8));
+    }
+
+    @Test
+    public void testMpscDrainTo () {
+        checkDrainTo(new MpscRingBuffer<>(8));
+    }
+
+    @Test
+    public void testSpscIteratesOverSnapshot () {
+        checkIteratesOverSnapshot(new SpscRingBuffer<>(4));
+    }
+
+    @Test
+    public void testMpscIteratesOverSnapshot () {
+        checkIteratesOverSnapshot(new MpscRingBuffer<>(4));
+    }
+
+    @Test
+    public void testSpscConcurrentHandOff () throws InterruptedException {
+        BlockingQueue<Integer> queue = new SpscRingBuffer<>(16);
+        Thread producer = startProducer(queue, 0, 100000);
+
+        List<Integer> received = consume(queue, 100000);
+        producer.join();
+
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals("Messages should arrive in order", i, (int) received.get(i));
+        }
+    }
+
+    @Test
+    public void testMpscConcurrentHandOff () throws InterruptedException {
+        BlockingQueue<Integer> queue = new MpscRingBuffer<>(16);
+        Thread producer1 = startProducer(queue, 0, 50000);
+        Thread producer2 = startProducer(queue, 50000, 50000);
+
+        List<Integer> received = consume(queue, 100000);
+        producer1.join();
+        producer2.join();
+
+        // Each producer's messages must keep their own order
+        int last1 = -1;
+        int last2 = 49999;
+        for (int value : received) {
+            if (value < 50000) {
+                assertEquals("Messages of producer 1 should arrive in order", last1 + 1, value);
+                last1 = value;
+            } else {
+                assertEquals("Messages of producer 2 should arrive in order", last2 + 1, value);
+                last2 = value;
+            }
+        }
+        assertEquals(49999, last1);
+        assertEquals(99999, last2);
+    }
+
+    private void checkCapacityAndOrder(BlockingQueue<Integer> queue) {
+        // Capacity is rounded up to the next power of two
+        assertEquals(4, queue.remainingCapacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue("Offer should succeed while there is room", queue.offer(i));
+        }
+        assertFalse("Offer should fail when the buffer is full", queue.offer(4));
+        assertEquals(4, queue.size());
+
+        assertEquals(0, (int) queue.peek());
+        assertEquals(0, (int) queue.poll());
+        assertTrue("Offer should succeed after a poll", queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, (int) queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    private void checkDrainTo(BlockingQueue<Integer> queue) {
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+        List<Integer> batch = new ArrayList<>();
+        assertEquals(3, queue.drainTo(batch, 3));
+        assertEquals(2, queue.drainTo(batch, 3));
+        assertEquals(0, queue.drainTo(batch, 3));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) batch.get(i));
+        }
+        assertEquals(8, queue.remainingCapacity());
+    }
+
+    private void checkIteratesOverSnapshot(BlockingQueue<Integer> queue) {
+        // Wrapped around the end of the ring, so that the snapshot has to follow the indexes
+        for (int i = 0; i < 3; i++) {
+            queue.offer(i);
+            queue.poll();
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(i);
+        }
+        Iterator<Integer> iterator = queue.iterator();
+        queue.poll();
+        queue.offer(3);
+
+        List<Integer> elements = new ArrayList<>();
+        iterator.forEachRemaining(elements::add);
+        assertEquals("Elements taken or added later should not change the snapshot", Arrays.asList(0, 1, 2), elements);
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(queue));
+        assertTrue(queue.contains(3));
+    }
+
+    private Thread startProducer(BlockingQueue<Integer> queue, int first, int count) {
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = first; i < first + count; i++) {
+                    queue.put(i);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        return producer;
+    }
+
+    private List<Integer> consume(BlockingQueue<Integer> queue, int count) throws InterruptedException {
+        List<Integer> received = new ArrayList<>(count);
+        List<Integer> batch = new ArrayList<>();
+        while (received.size() < count) {
+            batch.clear();
+            if (queue.drainTo(batch, 7) == 0) {
+                batch.add(queue.take());
+            }
+            received.addAll(batch);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceRegisterTest {
+
+    private HttpServer server;
+    private String url;
+    private final Set<Integer> clientPorts = new HashSet<>();
+    private int requests;
+    private final List<String> bodies = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private final CountDownLatch respond = new CountDownLatch(1);
+    private volatile boolean slow;
+
+    @Before
+    public void init() throws IOException {
+        // A minimal Service Catalog, which remembers the client port of every request
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            synchronized (this) {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                requests++;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                int b;
+                while ((b = in.read()) >= 0) {
+                    body.write(b);
+                }
+            }
+            synchronized (this) {
+                bodies.add(exchange.getRequestMethod() + " " + new String(body.toByteArray(), StandardCharsets.UTF_8));
+                paths.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath());
+            }
+            if (slow) {
+                try {
+                    respond.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] response = "{\"id\": \"nifi_test\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/sc";
+    }
+
+    @After
+    public void shutdown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionReusedBetweenRegistrations() throws Exception {
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "nifi_test", "{}")) {
+            for (int i = 0; i < 5; i++) {
+                serviceRegister.registerService().get();
+            }
+            serviceRegister.deregisterService().get();
+        }
+
+        synchronized (this) {
+            assertEquals("Every request should reach the Service Catalog", 6, requests);
+            assertEquals("All requests should share one connection", 1, clientPorts.size());
+        }
+    }
+
+    @Test
+    public void testIdTakenFromResponse() throws Exception {
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "", "{}")) {
+            serviceRegister.registerService().get();
+            serviceRegister.registerService().get();
+        }
+
+        synchronized (this) {
+            assertEquals("Registration with POST and then PUT should share one connection", 1, clientPorts.size());
+        }
+    }
+
+    @Test
+    public void testChangedBodyRegisteredAgain() throws Exception {
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "nifi_test", "{\"ttl\":120}")) {
+            serviceRegister.refresh().get();
+            assertFalse("Unchanged body should not count as a change", serviceRegister.updateBody("{\"ttl\":120}"));
+            serviceRegister.refresh().get();
+            assertTrue("Changed body should count as a change", serviceRegister.updateBody("{\"ttl\":60}"));
+            serviceRegister.refresh().get();
+        }
+
+        synchronized (this) {
+            assertEquals(Arrays.asList("PUT {\"ttl\":120}", "PUT {\"ttl\":120}", "PUT {\"ttl\":60}"), bodies);
+        }
+    }
+
+    @Test
+    public void testIdEncodedInUrl() throws Exception {
+        // The fake Service Catalog answers with another ID, which would be used from then on
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "device 1/a?b#c", "{}")) {
+            serviceRegister.registerService().get();
+        }
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "device 1/a?b#c", "{}")) {
+            serviceRegister.deregisterService().get();
+        }
+
+        synchronized (this) {
+            assertEquals(Arrays.asList("PUT /sc/device%201%2Fa%3Fb%23c", "DELETE /sc/device%201%2Fa%3Fb%23c"), paths);
+        }
+    }
+
+    @Test
+    public void testRefreshIntervalAroundHalfTtl() {
+        assertEquals(TimeUnit.SECONDS.toNanos(54), ServiceRegister.refreshIntervalNanos(120, 0));
+        assertEquals(TimeUnit.SECONDS.toNanos(66), ServiceRegister.refreshIntervalNanos(120, 1));
+    }
+
+    @Test
+    public void testRegistrationDoesNotWaitForResponse() throws Exception {
+        slow = true;
+        try (ServiceRegister serviceRegister = new ServiceRegister(url, "nifi_test", "{}")) {
+            CompletableFuture<Void> registration = serviceRegister.refresh();
+            assertFalse("Registration should still be waiting for the Service Catalog", registration.isDone());
+
+            respond.countDown();
+            registration.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+}
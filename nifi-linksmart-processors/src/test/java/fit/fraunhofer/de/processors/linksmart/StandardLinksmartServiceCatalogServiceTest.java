@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.processors.linksmart;
+
+import com.sun.net.httpserver.HttpServer;
+import fit.fraunhofer.de.services.linksmart.ServiceCatalogEntry;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StandardLinksmartServiceCatalogServiceTest {
+
+    private HttpServer server;
+    private final List<String> requests = new ArrayList<>();
+    private TestRunner testRunner;
+    private StandardLinksmartServiceCatalogService catalogService;
+
+    @Before
+    public void init() throws IOException, InitializationException {
+        // A minimal Service Catalog, which answers with the ID taken from the path
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                int b;
+                while ((b = in.read()) >= 0) {
+                    body.write(b);
+                }
+            }
+            String path = exchange.getRequestURI().getPath();
+            synchronized (requests) {
+                requests.add(exchange.getRequestMethod() + " " + path + " " + new String(body.toByteArray(), StandardCharsets.UTF_8));
+            }
+            byte[] response = ("{\"id\": \"" + path.substring(path.lastIndexOf('/') + 1) + "\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+
+        // The slice is long enough for the first slice not to start during a test, so that the tests can run slices themselves
+        testRunner = TestRunners.newTestRunner(LinksmartServiceRegister.class);
+        catalogService = new StandardLinksmartServiceCatalogService();
+        testRunner.addControllerService("catalog", catalogService);
+        testRunner.setProperty(catalogService, StandardLinksmartServiceCatalogService.SC_URL, "http://localhost:" + server.getAddress().getPort() + "/sc");
+        testRunner.setProperty(catalogService, StandardLinksmartServiceCatalogService.REFRESH_SLICE, "10 secs");
+        testRunner.setProperty(catalogService, StandardLinksmartServiceCatalogService.MAX_REFRESHES_PER_SLICE, "2");
+        testRunner.enableControllerService(catalogService);
+    }
+
+    @After
+    public void shutdown() {
+        testRunner.disableControllerService(catalogService);
+        server.stop(0);
+    }
+
+    @Test
+    public void testRefreshesLimitedPerSlice() throws Exception {
+        List<ServiceCatalogEntry> entries = new ArrayList<>();
+        for (String id : Arrays.asList("a", "b", "c")) {
+            entries.add(catalogService.register(id, "{}", 120));
+        }
+
+        catalogService.refreshDue();
+        awaitRequests(2);
+        Thread.sleep(200);
+        assertEquals("Only two entries should be registered in the first slice", 2, requestCount());
+
+        catalogService.refreshDue();
+        awaitRequests(3);
+
+        for (ServiceCatalogEntry entry : entries) {
+            entry.deregister().get(10, TimeUnit.SECONDS);
+        }
+        synchronized (requests) {
+            assertEquals("Every entry should be deleted", 3, requests.stream().filter(r -> r.startsWith("DELETE")).count());
+        }
+    }
+
+    @Test
+    public void testChangedBodyRegisteredWithNextSlice() throws Exception {
+        ServiceCatalogEntry entry = catalogService.register("a", "{\"ttl\":120}", 120);
+        catalogService.refreshDue();
+        awaitRequests(1);
+
+        entry.updateBody("{\"ttl\":60}");
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (requestCount() < 2 && System.nanoTime() - deadline < 0) {
+            catalogService.refreshDue();
+            Thread.sleep(50);
+        }
+
+        synchronized (requests) {
+            assertEquals(Arrays.asList("PUT /sc/a {\"ttl\":120}", "PUT /sc/a {\"ttl\":60}"), requests);
+        }
+        entry.deregister().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testOneShotRequestsNotRenewed() throws Exception {
+        assertEquals("device", catalogService.putEntry("device", "{}").get(10, TimeUnit.SECONDS));
+        assertTrue(catalogService.deleteEntry("device").get(10, TimeUnit.SECONDS));
+
+        catalogService.refreshDue();
+        Thread.sleep(200);
+        synchronized (requests) {
+            assertEquals(Arrays.asList("PUT /sc/device {}", "DELETE /sc/device "), requests);
+        }
+    }
+
+    private int requestCount() {
+        synchronized (requests) {
+            return requests.size();
+        }
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (requestCount() < count && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, requestCount());
+    }
+
+}
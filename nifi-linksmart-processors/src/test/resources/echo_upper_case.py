@@ -0,0 +1,9 @@
+import sys
+
+# Answers every line read from stdin with one line
+while True:
+    line = sys.stdin.readline()
+    if not line:
+        break
+    sys.stdout.write(line.upper())
+    sys.stdout.flush()
@@ -0,0 +1,8 @@
+import sys
+import time
+
+print("Msg 0 printed by Python")
+print("x" * 1000000)
+print("Msg 2 printed by Python")
+sys.stdout.flush()
+time.sleep(10)
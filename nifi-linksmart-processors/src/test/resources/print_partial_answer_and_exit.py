@@ -0,0 +1,6 @@
+import sys
+
+# Answers the first line read from stdin with the start of a line larger than the read buffer, then exits
+sys.stdin.readline()
+sys.stdout.write("x" * 200000)
+sys.stdout.flush()
@@ -0,0 +1,9 @@
+import sys
+import time
+
+sys.stderr.write("Warning 1 printed by Python\n")
+sys.stderr.write("Warning 2 printed by Python\n")
+sys.stderr.flush()
+print("Python printed 1 message")
+sys.stdout.flush()
+time.sleep(10)
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.services.linksmart;
+
+import org.apache.nifi.controller.ControllerService;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shares the connections to a Linksmart Service Catalog between processors, and keeps the service entries registered
+ * through it alive.
+ */
+public interface LinksmartServiceCatalogService extends ControllerService {
+
+    /**
+     * Registers a service entry, and renews it in time before its TTL expires until it is deregistered. Registration
+     * happens in the background, so this returns at once.
+     *
+     * @param id   the ID of the entry, or null or empty to have one assigned by the Service Catalog
+     * @param body the service entry as JSON
+     * @param ttl  the TTL of the entry in seconds
+     */
+    ServiceCatalogEntry register(String id, String body, int ttl);
+
+    /**
+     * @return whether requests to the Service Catalog are suspended after repeated failures, in which case they fail
+     * without being sent
+     */
+    boolean isCircuitOpen();
+
+    /**
+     * Looks up a service entry by its ID.
+     *
+     * @return the service entry as JSON, or null if the Service Catalog does not know it
+     */
+    CompletableFuture<String> getEntry(String id);
+
+    /**
+     * Looks up the service entries with a field matching a value.
+     *
+     * @param path     the field of the service entry, with nested fields separated by dots, e.g. {@code meta.ls_codename}
+     * @param operator one of {@code equals}, {@code prefix}, {@code suffix} or {@code contains}
+     * @return the first page of matching service entries as JSON, which holds the entries in its {@code services} array
+     */
+    CompletableFuture<String> findEntries(String path, String operator, String value);
+
+    /**
+     * Creates or replaces a service entry once, without renewing it, so that it expires after the TTL in its body.
+     *
+     * @param id   the ID of the entry, or null or empty to have one assigned by the Service Catalog
+     * @param body the service entry as JSON
+     * @return the ID of the entry
+     */
+    CompletableFuture<String> putEntry(String id, String body);
+
+    /**
+     * Deletes a service entry.
+     *
+     * @return true if the entry has been deleted, or false if the Service Catalog did not know it
+     */
+    CompletableFuture<Boolean> deleteEntry(String id);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fit.fraunhofer.de.services.linksmart;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A service entry kept registered by a {@link LinksmartServiceCatalogService}.
+ */
+public interface ServiceCatalogEntry {
+
+    /**
+     * @return the ID of the entry, or null while the Service Catalog has not assigned one yet
+     */
+    String getId();
+
+    /**
+     * Replaces the body of the entry. A changed body is registered in full as soon as possible, an unchanged one is
+     * ignored.
+     *
+     * @return whether the body has changed
+     */
+    boolean updateBody(String body);
+
+    /**
+     * Stops renewing the entry and deletes it from the Service Catalog, once a registration on its way has completed.
+     */
+    CompletableFuture<Void> deregister();
+
+}